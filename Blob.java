@@ -0,0 +1,117 @@
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Data stored once for every internal file with the same content, when deduplication is turned on with
+ * the vsfs.dedup system property. A blob is written to the notes file as "&" followed by the SHA-256
+ * hash of the content, then the data lines as a file would hold them; each file holding the content has
+ * a single data line referring to the blob by its hash instead of its own copy. A blob lives for as long
+ * as a file refers to it - once nothing does it is left in the notes file until it is next rewritten
+ * (e.g. by defrag or compaction). Text beginning with "!!" is always copied in encoded, so the content of
+ * a file cannot be mistaken for a reference.
+ */
+public class Blob extends InternalFile {
+   public static final String DEDUP_PROPERTY = "vsfs.dedup";
+   private static final String HASH_ALGORITHM = "SHA-256";
+   // length of a hash written in hex
+   public static final int HASH_LENGTH = 64;
+   private static final String HASH_REGEX = "[0-9a-f]{" + HASH_LENGTH + "}";
+   // length of the data line referring to a blob
+   public static final int REFERENCE_LENGTH = Symbol.BLOB_REFERENCE.length() + HASH_LENGTH;
+
+   // number of internal files whose data is this blob
+   public int references;
+
+   /**
+    * Create a blob that has not been written yet, or that is only known by its hash
+    * @param hash hex SHA-256 hash of the content
+    * @param isEncoded whether the data is base64 encoded
+    */
+   public Blob(String hash, boolean isEncoded) {
+      super(hash, isEncoded, -1, -1, 0, 0);
+   }
+
+   /**
+    * Create a blob read from the notes file
+    * @param hash hex SHA-256 hash of the content
+    * @param isEncoded whether the data is base64 encoded
+    * @param offset byte offset of the blob's "&" line
+    * @param dataOffset byte offset of the blob's first data line
+    * @param dataLength number of bytes taken up by the blob's data lines
+    * @param size number of characters of data
+    */
+   public Blob(String hash, boolean isEncoded, long offset, long dataOffset, long dataLength, long size) {
+      super(hash, isEncoded, offset, dataOffset, dataLength, size);
+   }
+
+   /**
+    * Check if file data copied in is stored as blobs
+    * @return true if deduplication is turned on, false otherwise
+    */
+   public static boolean isEnabled() {
+      return Boolean.getBoolean(DEDUP_PROPERTY);
+   }
+
+   /**
+    * Check if external data is worth storing as a blob - a reference takes up a line of its own
+    * @param length length of the external file in bytes
+    * @return true if the data is at least as long as a reference to it, false otherwise
+    */
+   public static boolean isWorthSharing(long length) {
+      return length >= REFERENCE_LENGTH;
+   }
+
+   /**
+    * Create the digest used to hash file content
+    * @return a new SHA-256 digest
+    */
+   public static MessageDigest newDigest() {
+      try {
+         return MessageDigest.getInstance(HASH_ALGORITHM);
+      } catch (NoSuchAlgorithmException e) {
+         // every Java platform is required to support SHA-256
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Get the hash of content from its digest
+    * @param digest digest the whole content has been passed through
+    * @return the hash written in hex
+    */
+   public static String hash(MessageDigest digest) {
+      return HexFormat.of().formatHex(digest.digest());
+   }
+
+   /**
+    * Get the data line referring to a blob
+    * @param hash hash of the blob
+    * @return the data line, without a newline
+    */
+   public static String referenceLine(String hash) {
+      return Symbol.BLOB_REFERENCE + hash;
+   }
+
+   /**
+    * Get the hash a data line refers to
+    * @param line a data line, without a newline
+    * @return the hash of the blob, null if the line is not a reference to a blob
+    */
+   public static String referencedHash(String line) {
+      if (!line.startsWith(Symbol.BLOB_REFERENCE)) {
+         return null;
+      }
+      String hash = line.substring(Symbol.BLOB_REFERENCE.length());
+      return hash.matches(HASH_REGEX) ? hash : null;
+   }
+
+   /**
+    * Check the "&" line of a blob
+    * @param line the line, without a newline
+    * @return true if it names a valid hash, false otherwise
+    */
+   public static boolean isValidLine(String line) {
+      return line.startsWith(Symbol.BLOB) && line.substring(Symbol.BLOB.length()).matches(HASH_REGEX);
+   }
+}
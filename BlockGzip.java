@@ -0,0 +1,424 @@
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Parallel gzip compression of .notes.gz files. Data is split into fixed size blocks which are deflated
+ * on a ForkJoinPool and written as concatenated gzip members, so the output is still read by standard
+ * gzip tools. Each member records its own compressed size in an extra field of its header (subfield
+ * "VS"), which lets members be located without inflating the ones before them and inflated in parallel.
+ * The compression level and block size are read from the vsfs.gzip.level and vsfs.gzip.blockSize
+ * system properties.
+ */
+public class BlockGzip {
+   public static final String LEVEL_PROPERTY = "vsfs.gzip.level";
+   public static final String BLOCK_SIZE_PROPERTY = "vsfs.gzip.blockSize";
+   private static final int DEFAULT_LEVEL = 6;
+   private static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+   private static final int MIN_BLOCK_SIZE = 4 * 1024;
+
+   // ID1 ID2 CM FLG MTIME(4) XFL OS XLEN(2) SI1 SI2 LEN(2) member size(4)
+   private static final int HEADER_SIZE = 20;
+   // CRC32(4) ISIZE(4)
+   private static final int TRAILER_SIZE = 8;
+   private static final byte FLAG_EXTRA = 4;
+   private static final byte OS_UNKNOWN = (byte) 255;
+   private static final byte SUBFIELD_ID1 = 'V';
+   private static final byte SUBFIELD_ID2 = 'S';
+
+   /**
+    * Open a stream that compresses everything written to it into a file
+    * @param file file to write the compressed data to
+    * @return stream to write uncompressed data to
+    */
+   public static OutputStream openOutput(File file) throws IOException {
+      return new Output(new FileOutputStream(file), level(), blockSize());
+   }
+
+   /**
+    * Open a stream of the decompressed contents of a gzip file, starting at a given offset. Files written
+    * in blocks are decompressed in parallel, and whole blocks before the offset are skipped without being
+    * decompressed. Any other gzip file is decompressed as a single stream.
+    * @param file gzip file to read
+    * @param offset number of decompressed bytes to skip
+    * @return stream of decompressed data
+    */
+   public static InputStream openInput(File file, long offset) throws IOException {
+      if (isBlockFile(file)) {
+         return new Input(file, offset);
+      }
+      InputStream in = new GZIPInputStream(new FileInputStream(file), 64 * 1024);
+      in.skipNBytes(offset);
+      return in;
+   }
+
+   /**
+    * Get the configured compression level
+    * @return level between 0 (no compression) and 9 (best compression)
+    */
+   private static int level() {
+      int level = Integer.getInteger(LEVEL_PROPERTY, DEFAULT_LEVEL);
+      if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+         Util.exitProgram("The gzip compression level (" + LEVEL_PROPERTY + ") must be between 0 and 9.");
+      }
+      return level;
+   }
+
+   /**
+    * Get the configured size of each block of uncompressed data
+    * @return number of bytes compressed into each gzip member
+    */
+   private static int blockSize() {
+      int blockSize = Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE);
+      if (blockSize < MIN_BLOCK_SIZE) {
+         Util.exitProgram("The gzip block size (" + BLOCK_SIZE_PROPERTY + ") must be at least " + MIN_BLOCK_SIZE + " bytes.");
+      }
+      return blockSize;
+   }
+
+   /**
+    * Check if a gzip file was written in blocks by checking the header of its first member
+    * @param file gzip file to check
+    * @return true if the first member records its size, false otherwise
+    */
+   private static boolean isBlockFile(File file) throws IOException {
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+         return readMemberSize(channel, 0) > 0;
+      }
+   }
+
+   /**
+    * Read the size of the member starting at a given position from its header
+    * @param channel channel of the gzip file
+    * @param position offset of the start of the member
+    * @return size of the whole member in bytes, -1 if the member does not record its size
+    */
+   private static int readMemberSize(FileChannel channel, long position) throws IOException {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining()) {
+         if (channel.read(header, position + header.position()) < 0) {
+            return -1;
+         }
+      }
+      if (header.get(0) != (byte) 0x1f || header.get(1) != (byte) 0x8b || header.get(2) != Deflater.DEFLATED
+              || header.get(3) != FLAG_EXTRA || header.getShort(10) != 8 || header.get(12) != SUBFIELD_ID1
+              || header.get(13) != SUBFIELD_ID2 || header.getShort(14) != 4) {
+         return -1;
+      }
+      int size = header.getInt(16);
+      return size >= HEADER_SIZE + TRAILER_SIZE ? size : -1;
+   }
+
+   /**
+    * Compress a block of data into a complete gzip member
+    * @param data array holding the block
+    * @param length number of bytes of the block
+    * @param level compression level
+    * @return the gzip member
+    */
+   private static byte[] compress(byte[] data, int length, int level) {
+      Deflater deflater = new Deflater(level, true);
+      deflater.setInput(data, 0, length);
+      deflater.finish();
+      // incompressible data grows by a few bytes per 16KB stored block
+      byte[] member = new byte[HEADER_SIZE + length + length / 1024 + 64 + TRAILER_SIZE];
+      int size = HEADER_SIZE;
+      while (!deflater.finished()) {
+         if (size == member.length - TRAILER_SIZE) {
+            member = Arrays.copyOf(member, member.length * 2);
+         }
+         size += deflater.deflate(member, size, member.length - TRAILER_SIZE - size);
+      }
+      deflater.end();
+      size += TRAILER_SIZE;
+
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      ByteBuffer buffer = ByteBuffer.wrap(member).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put((byte) 0x1f).put((byte) 0x8b).put((byte) Deflater.DEFLATED).put(FLAG_EXTRA);
+      buffer.putInt(0).put((byte) 0).put(OS_UNKNOWN);
+      buffer.putShort((short) 8).put(SUBFIELD_ID1).put(SUBFIELD_ID2).putShort((short) 4).putInt(size);
+      buffer.putInt(size - TRAILER_SIZE, (int) crc.getValue());
+      buffer.putInt(size - TRAILER_SIZE + 4, length);
+      return Arrays.copyOf(member, size);
+   }
+
+   /**
+    * Read and inflate a single gzip member, checking it against its trailer
+    * @param channel channel of the gzip file
+    * @param position offset of the start of the member
+    * @param size size of the whole member in bytes
+    * @return the decompressed data of the member
+    */
+   private static byte[] inflate(FileChannel channel, long position, int size) throws IOException {
+      ByteBuffer member = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+      while (member.hasRemaining()) {
+         if (channel.read(member, position + member.position()) < 0) {
+            throw new IOException("The compressed file system ends part way through a block.");
+         }
+      }
+      int expectedCrc = member.getInt(size - TRAILER_SIZE);
+      byte[] data = new byte[member.getInt(size - TRAILER_SIZE + 4)];
+
+      Inflater inflater = new Inflater(true);
+      inflater.setInput(member.array(), HEADER_SIZE, size - HEADER_SIZE - TRAILER_SIZE);
+      try {
+         int length = 0;
+         while (length < data.length && !inflater.finished()) {
+            length += inflater.inflate(data, length, data.length - length);
+            if (inflater.needsInput()) {
+               break;
+            }
+         }
+         CRC32 crc = new CRC32();
+         crc.update(data, 0, length);
+         if (length != data.length || (int) crc.getValue() != expectedCrc) {
+            throw new IOException("A block of the compressed file system is corrupt.");
+         }
+      } catch (DataFormatException e) {
+         throw new IOException("A block of the compressed file system is corrupt.", e);
+      } finally {
+         inflater.end();
+      }
+      return data;
+   }
+
+   /**
+    * Stream that splits written data into blocks and compresses them in parallel, writing the
+    * compressed members out in order
+    */
+   private static class Output extends OutputStream {
+      private final OutputStream out;
+      private final int level;
+      private final int blockSize;
+      private final ForkJoinPool pool = ForkJoinPool.commonPool();
+      // members being compressed, in the order they are written - bounded so memory use stays fixed
+      private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+      private final int maxInFlight;
+      private byte[] block;
+      private int blockLength = 0;
+      private boolean written = false;
+      private boolean closed = false;
+
+      private Output(OutputStream out, int level, int blockSize) {
+         this.out = out;
+         this.level = level;
+         this.blockSize = blockSize;
+         this.maxInFlight = pool.getParallelism() * 2;
+         this.block = new byte[blockSize];
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         block[blockLength++] = (byte) b;
+         if (blockLength == blockSize) {
+            submitBlock();
+         }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         while (len > 0) {
+            int count = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, count);
+            blockLength += count;
+            off += count;
+            len -= count;
+            if (blockLength == blockSize) {
+               submitBlock();
+            }
+         }
+      }
+
+      @Override
+      public void close() throws IOException {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         try {
+            // an empty file still needs a single (empty) member to be valid gzip
+            if (blockLength > 0 || !written) {
+               submitBlock();
+            }
+            while (!inFlight.isEmpty()) {
+               writeNext();
+            }
+         } finally {
+            out.close();
+         }
+      }
+
+      /**
+       * Start compressing the current block, writing out finished members once too many are in flight
+       */
+      private void submitBlock() throws IOException {
+         byte[] data = block;
+         int length = blockLength;
+         inFlight.add(pool.submit(() -> compress(data, length, level)));
+         written = true;
+         block = new byte[blockSize];
+         blockLength = 0;
+         while (inFlight.size() > maxInFlight) {
+            writeNext();
+         }
+      }
+
+      /**
+       * Wait for the oldest block to be compressed and write it out
+       */
+      private void writeNext() throws IOException {
+         out.write(await(inFlight.poll()));
+      }
+   }
+
+   /**
+    * Stream that inflates the members of a block gzip file in parallel, a bounded number of members
+    * ahead of the reader
+    */
+   private static class Input extends InputStream {
+      private final FileChannel channel;
+      private final ForkJoinPool pool = ForkJoinPool.commonPool();
+      private final ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+      private final int maxInFlight;
+      // offset of the next member to start inflating
+      private long nextMember = 0;
+      private byte[] current = new byte[0];
+      private int currentPosition = 0;
+
+      private Input(File file, long offset) throws IOException {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         maxInFlight = pool.getParallelism() * 2;
+         // skip whole members using the uncompressed size held in their trailer
+         long fileSize = channel.size();
+         while (nextMember < fileSize) {
+            int size = memberSize(nextMember);
+            ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(isize, nextMember + size - 4);
+            long length = Integer.toUnsignedLong(isize.getInt(0));
+            if (offset < length) {
+               break;
+            }
+            offset -= length;
+            nextMember += size;
+         }
+         fillWindow();
+         // the remaining offset falls within the first member
+         if (offset > 0) {
+            if (!nextBlock() || offset > current.length) {
+               throw new EOFException();
+            }
+            currentPosition = (int) offset;
+         }
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (currentPosition == current.length && !nextBlock()) {
+            return -1;
+         }
+         return current[currentPosition++] & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         if (currentPosition == current.length && !nextBlock()) {
+            return -1;
+         }
+         int count = Math.min(len, current.length - currentPosition);
+         System.arraycopy(current, currentPosition, b, off, count);
+         currentPosition += count;
+         return count;
+      }
+
+      @Override
+      public void close() throws IOException {
+         for (Future<byte[]> member : inFlight) {
+            member.cancel(false);
+         }
+         inFlight.clear();
+         channel.close();
+      }
+
+      /**
+       * Move on to the next inflated member that holds data
+       * @return true if there was another member, false at the end of the file
+       */
+      private boolean nextBlock() throws IOException {
+         do {
+            if (inFlight.isEmpty()) {
+               return false;
+            }
+            current = await(inFlight.poll());
+            currentPosition = 0;
+            fillWindow();
+         } while (current.length == 0);
+         return true;
+      }
+
+      /**
+       * Start inflating members until enough are in flight or the end of the file is reached
+       */
+      private void fillWindow() throws IOException {
+         while (inFlight.size() < maxInFlight && nextMember < channel.size()) {
+            long position = nextMember;
+            int size = memberSize(position);
+            inFlight.add(pool.submit(() -> inflate(channel, position, size)));
+            nextMember += size;
+         }
+      }
+
+      /**
+       * Get the size of the member at a given position, failing if it does not record its size
+       * @param position offset of the start of the member
+       * @return size of the whole member in bytes
+       */
+      private int memberSize(long position) throws IOException {
+         int size = readMemberSize(channel, position);
+         if (size < 0) {
+            throw new IOException("The compressed file system contains a block of an unknown format.");
+         }
+         return size;
+      }
+   }
+
+   /**
+    * Wait for a block to be compressed or inflated
+    * @param block the pending block
+    * @return the resulting data
+    */
+   private static byte[] await(Future<byte[]> block) throws IOException {
+      try {
+         return block.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted whilst waiting for a compressed block.", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+}
@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+
+/**
+ * Reclaims the space taken up by removed ("#") lines of a notes file once enough of it is dead, rather than
+ * waiting for defrag. The dead bytes of a file system are measured when it is loaded and counted as entries
+ * are removed; when the file system is closed it is compacted if the dead bytes reach both
+ * vsfs.compact.minBytes and the fraction vsfs.compact.ratio of the notes file, or reach vsfs.compact.maxBytes
+ * on their own. An incremental compaction (the default mode, set with vsfs.compact) keeps everything before
+ * the first removed entry as it is and only rewrites the entries after it; a full compaction sorts and
+ * rewrites the whole file system as defrag does.
+ */
+public class Compactor {
+   public static final String MODE_PROPERTY = "vsfs.compact";
+   public static final String RATIO_PROPERTY = "vsfs.compact.ratio";
+   public static final String MIN_BYTES_PROPERTY = "vsfs.compact.minBytes";
+   public static final String MAX_BYTES_PROPERTY = "vsfs.compact.maxBytes";
+   private static final String DEFAULT_MODE = "incremental";
+   private static final double DEFAULT_RATIO = 0.5;
+   private static final long DEFAULT_MIN_BYTES = 1024 * 1024;
+
+   /**
+    * Measure the dead bytes of a loaded file system from the gaps between its entries, and find the first
+    * entry an incremental compaction has to rewrite from
+    * @param fileSystem the loaded file system
+    * @param length length of the notes file
+    */
+   public static void measure(FileSystem fileSystem, long length) {
+      ArrayList<InternalFile> written = new ArrayList<>(fileSystem.allFiles.size() + fileSystem.blobs.size());
+      for (InternalFile file : fileSystem.allFiles) {
+         if (file.offset >= 0) {
+            written.add(file);
+         }
+      }
+      // blobs some file refers to are live too
+      written.addAll(fileSystem.blobs.values());
+      written.sort(Comparator.comparingLong(file -> file.offset));
+
+      long live = Symbol.HEADER_TAG.length() + 1;
+      // end of the entries seen so far, and the start of the last of them
+      long end = live;
+      long previous = 0;
+      long compactFrom = -1;
+      for (InternalFile file : written) {
+         // entries held in memory are written out again, so they cannot be kept where they are
+         if (compactFrom == -1 && (file.offset != end || file.data != null)) {
+            // the end of an entry is only estimated (line endings), so the entry before the gap is rewritten too
+            compactFrom = file.offset != end ? previous : file.offset;
+         }
+         long entryEnd = entryEnd(file);
+         live += entryEnd - file.offset;
+         previous = file.offset;
+         end = entryEnd;
+      }
+      if (compactFrom == -1 && end < length) {
+         // removed lines follow the last entry
+         compactFrom = previous;
+      }
+      fileSystem.setDeadBytes(Math.max(0, length - live), compactFrom);
+   }
+
+   /**
+    * Get the offset just after the lines of an entry written to the notes file
+    * @param file the entry
+    * @return offset of the line following the entry
+    */
+   public static long entryEnd(InternalFile file) {
+      if (file.isDir) {
+         return file.offset + Util.byteLength(Symbol.DIR + file.name()) + 1;
+      }
+      return file.dataOffset + file.dataLength;
+   }
+
+   /**
+    * Compact the notes file if enough of it is dead, as set by the compaction properties
+    * @param fileSystem file system being closed - the caller holds it exclusively
+    * @return true if the notes file was compacted, false otherwise
+    */
+   public static boolean compactIfNeeded(FileSystem fileSystem) {
+      String mode = System.getProperty(MODE_PROPERTY, DEFAULT_MODE);
+      if (mode.equals("off") || fileSystem.compressed || fileSystem.deadBytes() == 0) {
+         return false;
+      } else if (!mode.equals("incremental") && !mode.equals("full")) {
+         Util.exitProgram("The compaction mode (" + MODE_PROPERTY + ") must be incremental, full or off.");
+      }
+      if (!isDue(fileSystem.deadBytes(), fileSystem.fs.length())) {
+         return false;
+      }
+
+      if (mode.equals("full")) {
+         fileSystem.allFiles = Util.treeSort(fileSystem);
+         Util.rewriteNotesFile(fileSystem);
+      } else {
+         Util.rewriteNotesFile(fileSystem, Math.max(0, fileSystem.compactFrom()));
+      }
+      return true;
+   }
+
+   /**
+    * Check the dead bytes of a notes file against the compaction thresholds
+    * @param deadBytes bytes of the notes file taken up by removed lines
+    * @param length length of the notes file
+    * @return true if the notes file should be compacted, false otherwise
+    */
+   private static boolean isDue(long deadBytes, long length) {
+      double ratio;
+      try {
+         ratio = Double.parseDouble(System.getProperty(RATIO_PROPERTY, String.valueOf(DEFAULT_RATIO)));
+      } catch (NumberFormatException e) {
+         ratio = Double.NaN;
+      }
+      if (!(ratio >= 0 && ratio <= 1)) {
+         Util.exitProgram("The compaction ratio (" + RATIO_PROPERTY + ") must be between 0 and 1.");
+      }
+      long minBytes = Long.getLong(MIN_BYTES_PROPERTY, DEFAULT_MIN_BYTES);
+      long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, Long.MAX_VALUE);
+      return deadBytes >= maxBytes || (deadBytes >= minBytes && deadBytes >= ratio * length);
+   }
+}
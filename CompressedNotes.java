@@ -0,0 +1,312 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.SequenceInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Storage of a .notes.gz file system. The file system is parsed straight from the compressed file and
+ * is never decompressed to disk, so read-only commands leave it untouched. Offsets of entries refer to
+ * the decompressed notes file. Changes are held back until they are committed: appended lines
+ * are written to a pending file beside the archive and removed lines are recorded by offset, then the
+ * archive is rewritten in a single pass, compressed in parallel blocks by BlockGzip.
+ */
+public class CompressedNotes {
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final File source;
+   // length of the decompressed notes file held in the archive - appended lines follow on from here
+   private long baseLength;
+   // lines appended since the file system was opened (created when first written to)
+   private File pending;
+   private OutputStream pendingStream;
+   private FileChannel pendingChannel;
+   // decompressed copy of the whole file system, only made whilst it is rewritten in a different order
+   private File image;
+   private FileChannel imageChannel;
+   // start and end offsets of the regions whose lines have been removed
+   private final TreeMap<Long, Long> tombstones;
+
+   /**
+    * Create the storage of a compressed file system
+    * @param source the .notes.gz file
+    */
+   public CompressedNotes(File source) {
+      this.source = source;
+      this.baseLength = 0;
+      this.tombstones = new TreeMap<>();
+   }
+
+   /**
+    * Open the compressed file system for parsing
+    * @return reader over the decompressed lines of the file system
+    */
+   public NotesReader open() throws IOException {
+      return new NotesReader(decompress(), 0, Long.MAX_VALUE);
+   }
+
+   /**
+    * Set the length of the decompressed notes file once it has been parsed
+    * @param length number of bytes held in the archive
+    */
+   public void setBaseLength(long length) {
+      baseLength = length;
+   }
+
+   /**
+    * Create the writer used for appending lines to the file system
+    * @return writer appending to the pending file, which is only created once something is written
+    */
+   public PrintWriter openWriter() {
+      OutputStream lazyPending = new OutputStream() {
+         @Override
+         public void write(int b) throws IOException {
+            pendingStream().write(b);
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            pendingStream().write(b, off, len);
+         }
+
+         @Override
+         public void flush() throws IOException {
+            if (pendingStream != null) {
+               pendingStream.flush();
+            }
+         }
+      };
+      return new PrintWriter(new BufferedWriter(new OutputStreamWriter(lazyPending, StandardCharsets.UTF_8)));
+   }
+
+   /**
+    * Get the stream of the pending file, creating the file if required
+    * @return stream appending to the pending file
+    */
+   private OutputStream pendingStream() throws IOException {
+      if (pendingStream == null) {
+         pending = createTempFile(".pending");
+         pendingStream = new FileOutputStream(pending, true);
+      }
+      return pendingStream;
+   }
+
+   /**
+    * Open a stream of the decompressed notes file starting at a given offset
+    * @param offset byte offset within the decompressed notes file
+    * @return stream positioned at the offset
+    */
+   public InputStream openRegion(long offset) throws IOException {
+      InputStream in;
+      if (offset >= baseLength) {
+         in = new FileInputStream(pending);
+         in.skipNBytes(offset - baseLength);
+      } else {
+         in = BlockGzip.openInput(source, offset);
+      }
+      return in;
+   }
+
+   /**
+    * Open a stream over the data lines of a file - safe to call from several commands at once
+    * @param dataOffset byte offset of the file's first data line
+    * @param dataLength number of bytes taken up by the file's data lines
+    * @return stream of the file's data
+    */
+   public synchronized InputStream openData(long dataOffset, long dataLength) throws IOException {
+      if (imageChannel != null) {
+         return new DataRegionStream(imageChannel, dataOffset, dataLength);
+      } else if (dataOffset >= baseLength) {
+         if (pendingChannel == null) {
+            pendingChannel = FileChannel.open(pending.toPath(), StandardOpenOption.READ);
+         }
+         return new DataRegionStream(pendingChannel, dataOffset - baseLength, dataLength);
+      }
+      // data held in the archive is decompressed up to the start of the file
+      return new DataRegionStream(openRegion(dataOffset), dataLength);
+   }
+
+   /**
+    * Record a region of lines as removed - each line starting within the region is written with the
+    * ignore symbol when the archive is rewritten
+    * @param start offset of the first line of the region
+    * @param end offset the region ends at (exclusive)
+    */
+   public synchronized void tombstone(long start, long end) {
+      tombstones.merge(start, end, Math::max);
+   }
+
+   /**
+    * Prepare for the file system to be rewritten in a different order by decompressing it (along with
+    * any pending lines) to a temporary file, from which file data is read until the rewrite is finished
+    */
+   public void beginRewrite() throws IOException {
+      image = createTempFile(".image");
+      try (InputStream in = openAll(); OutputStream os = new FileOutputStream(image)) {
+         in.transferTo(os);
+      }
+      imageChannel = FileChannel.open(image.toPath(), StandardOpenOption.READ);
+   }
+
+   /**
+    * Create an output stream for writing a new archive
+    * @param tempFile file the compressed notes are written to
+    * @return stream compressing everything written to it
+    */
+   public OutputStream openOutput(File tempFile) throws IOException {
+      return BlockGzip.openOutput(tempFile);
+   }
+
+   /**
+    * Replace the archive with a rewritten one, dropping any pending changes (already included in it)
+    * @param tempFile file holding the rewritten archive
+    * @param length length of the decompressed notes held in the rewritten archive
+    */
+   public void finishRewrite(File tempFile, long length) throws IOException {
+      discardPending();
+      replaceSource(tempFile);
+      baseLength = length;
+      tombstones.clear();
+   }
+
+   /**
+    * Create a file beside the archive for temporary use, deleted on exit if it is left behind
+    * @param suffix suffix of the file name
+    * @return the new empty file
+    */
+   public File createTempFile(String suffix) throws IOException {
+      return Util.createTempFile(source, suffix);
+   }
+
+   /**
+    * Write any changes made to the file system back to the archive and clean up temporary files. The file
+    * system can go on being changed afterwards, with the new changes written by the next commit.
+    */
+   public void commit() throws IOException {
+      if (pendingStream != null) {
+         pendingStream.flush();
+      }
+      long pendingLength = pending == null ? 0 : pending.length();
+      boolean changed = !tombstones.isEmpty() || pendingLength > 0;
+      if (changed) {
+         // stream the archive and the pending lines into a new archive, removing lines on the way
+         File tempFile = createTempFile(".tmp");
+         try (InputStream in = openAll(); OutputStream os = openOutput(tempFile)) {
+            copyTombstoned(in, os);
+         }
+         discardPending();
+         replaceSource(tempFile);
+      } else {
+         discardPending();
+      }
+      // appended lines are now part of the archive
+      baseLength += pendingLength;
+      tombstones.clear();
+   }
+
+   /**
+    * Drop any changes that have not been committed and clean up temporary files
+    */
+   public void discard() throws IOException {
+      discardPending();
+      tombstones.clear();
+   }
+
+   /**
+    * Open a decompressing stream of the archive
+    * @return stream of the decompressed notes file
+    */
+   private InputStream decompress() throws IOException {
+      return BlockGzip.openInput(source, 0);
+   }
+
+   /**
+    * Open a stream of the whole file system: the decompressed archive followed by the pending lines
+    * @return stream of the decompressed notes file with all appended lines
+    */
+   private InputStream openAll() throws IOException {
+      if (pending == null) {
+         return decompress();
+      }
+      return new SequenceInputStream(decompress(), new FileInputStream(pending));
+   }
+
+   /**
+    * Copy the notes file, writing the ignore symbol at the start of every removed line
+    * @param in stream of the notes file
+    * @param os stream to write to
+    */
+   private void copyTombstoned(InputStream in, OutputStream os) throws IOException {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      byte ignore = (byte) Symbol.IGNORE.charAt(0);
+      Iterator<Map.Entry<Long, Long>> regions = tombstones.entrySet().iterator();
+      Map.Entry<Long, Long> region = regions.hasNext() ? regions.next() : null;
+      long position = 0;
+      boolean atLineStart = true;
+      boolean afterReturn = false;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+         for (int i = 0; i < read; i++, position++) {
+            if (atLineStart && !(afterReturn && buffer[i] == '\n')) {
+               // regions are visited in order as the position only moves forwards
+               while (region != null && region.getValue() <= position) {
+                  region = regions.hasNext() ? regions.next() : null;
+               }
+               if (region != null && region.getKey() <= position) {
+                  buffer[i] = ignore;
+               }
+               atLineStart = false;
+            } else if (buffer[i] == '\n' || buffer[i] == '\r') {
+               atLineStart = true;
+            }
+            afterReturn = buffer[i] == '\r';
+         }
+         os.write(buffer, 0, read);
+      }
+   }
+
+   /**
+    * Close and delete the pending file and the decompressed image
+    */
+   private void discardPending() throws IOException {
+      if (pendingStream != null) {
+         pendingStream.close();
+         pendingStream = null;
+      }
+      if (pendingChannel != null) {
+         pendingChannel.close();
+         pendingChannel = null;
+      }
+      if (pending != null) {
+         pending.delete();
+         pending = null;
+      }
+      if (imageChannel != null) {
+         imageChannel.close();
+         imageChannel = null;
+      }
+      if (image != null) {
+         image.delete();
+         image = null;
+      }
+   }
+
+   /**
+    * Move a new archive over the current one, once it has been forced to disk
+    * @param tempFile file holding the new archive
+    */
+   private void replaceSource(File tempFile) throws IOException {
+      Util.replaceFile(tempFile, source);
+   }
+}
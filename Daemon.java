@@ -0,0 +1,300 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long-running server that keeps file systems loaded in memory and runs commands sent to it by
+ * DaemonClient over a Unix domain socket, so that commands do not pay for starting the JVM and parsing
+ * the notes file. Each connection carries a single command:
+ *
+ * request:  the client's working directory, the number of arguments and each argument (as UTF strings),
+ *           followed by the length and bytes of standard input (only sent for "batch FS -")
+ * response: frames of a type byte, a length and the bytes of standard output or standard error,
+ *           ending with an exit frame holding the exit status
+ *
+ * Every file system used stays loaded. Commands run concurrently, locking the parts of the file system
+ * they work on (see FileSystem). Changes are written out once no command is running on a file system, and
+ * a file system is loaded again if its notes file is changed by anything other than the server.
+ */
+public class Daemon {
+   public static final byte STDOUT_FRAME = 1;
+   public static final byte STDERR_FRAME = 2;
+   public static final byte EXIT_FRAME = 3;
+
+   // loaded file systems by the real path of their notes file (see keyFor)
+   private static final ConcurrentHashMap<Path, FileSystem> fileSystems = new ConcurrentHashMap<>();
+   // standard streams of the command running on each connection thread
+   private static final ThreadLocal<InputStream> commandIn = new ThreadLocal<>();
+   private static final ThreadLocal<PrintStream> commandOut = new ThreadLocal<>();
+   private static final ThreadLocal<PrintStream> commandErr = new ThreadLocal<>();
+   // streams of the server itself, used for reporting server errors
+   private static final PrintStream serverErr = System.err;
+
+   /**
+    * Serve commands on a Unix domain socket until the server is stopped
+    * @param socketPath path of the socket file to create
+    */
+   public static void serve(String socketPath) {
+      Path path = Path.of(socketPath);
+      if (Files.exists(path)) {
+         // a socket left behind by a server that is no longer running can be replaced
+         if (DaemonClient.isServing(path)) {
+            Util.exitProgram("A server is already running on " + socketPath + ".");
+         }
+         try {
+            Files.delete(path);
+         } catch (IOException e) {
+            Util.exitProgram("The existing socket " + socketPath + " could not be replaced.");
+         }
+      }
+
+      // the standard streams are shared by every thread - send what each command writes to its own client
+      System.setIn(new CommandInputStream(System.in));
+      System.setOut(new PrintStream(new CommandOutputStream(commandOut, System.out), true));
+      System.setErr(new PrintStream(new CommandOutputStream(commandErr, System.err), true));
+
+      // each connection has its own thread
+      ExecutorService connections = Executors.newCachedThreadPool();
+      try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+         server.bind(UnixDomainSocketAddress.of(path));
+         Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(path)));
+         while (true) {
+            SocketChannel client = server.accept();
+            connections.submit(() -> handle(client));
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
+         Util.exitProgram("The server could not listen on " + socketPath + ".");
+      }
+   }
+
+   /**
+    * Read a command from a connection, run it and send back its output and exit status
+    * @param client connection to the client
+    */
+   private static void handle(SocketChannel client) {
+      try (client) {
+         DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(client)));
+         File workingDirectory = new File(in.readUTF());
+         String[] args = new String[in.readInt()];
+         for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+         }
+         byte[] stdin = in.readNBytes(in.readInt());
+
+         int status = run(workingDirectory, args, stdin, out);
+         out.writeByte(EXIT_FRAME);
+         out.writeInt(status);
+         out.flush();
+      } catch (IOException e) {
+         serverErr.println("A connection to the server failed: " + e.getMessage());
+      }
+   }
+
+   /**
+    * Run a single command on its file system, loading the file system first if required
+    * @param workingDirectory directory relative paths of the command are resolved against
+    * @param args arguments of the command, as they would be given to the program
+    * @param stdin standard input of the command
+    * @param out stream the output frames are written to
+    * @return exit status of the command
+    */
+   private static int run(File workingDirectory, String[] args, byte[] stdin, DataOutputStream out) {
+      PrintStream stdout = new PrintStream(new BufferedOutputStream(new FrameOutputStream(out, STDOUT_FRAME)));
+      // error messages are sent as soon as each line is printed, as they would be to a terminal
+      PrintStream stderr = new PrintStream(new FrameOutputStream(out, STDERR_FRAME), true);
+      commandIn.set(new ByteArrayInputStream(stdin));
+      commandOut.set(stdout);
+      commandErr.set(stderr);
+      Driver.setBaseDirectory(workingDirectory);
+      int status = 0;
+      try {
+         Driver.checkArgumentCount(args);
+         Stats.Command command = Stats.startCommand(args[0].toLowerCase());
+         try {
+            Path notesPath = keyFor(FileSystem.fileFor(Driver.resolve(args[1])));
+            FileSystem fileSystem = fileSystems.computeIfAbsent(notesPath, path -> new FileSystem(path.toString()));
+            Driver.openSession(fileSystem, args);
+            try {
+               Driver.execute(fileSystem, args);
+            } catch (ProgramExitException e) {
+               throw e;
+            } catch (RuntimeException e) {
+               // an unexpected error may have left the model part way through a change - it is loaded again
+               fileSystem.invalidate();
+               throw e;
+            } finally {
+               fileSystem.closeSession();
+            }
+         } finally {
+            command.finish();
+         }
+      } catch (ProgramExitException e) {
+         // the error has already been reported
+         status = 1;
+      } catch (Exception e) {
+         e.printStackTrace();
+         status = 1;
+      } finally {
+         Driver.setBaseDirectory(null);
+         commandIn.remove();
+         commandOut.remove();
+         commandErr.remove();
+         stdout.flush();
+         stderr.flush();
+      }
+      return status;
+   }
+
+   /**
+    * Get the path a file system is held under, so that every name of the same notes file (relative, through
+    * "." or "..", or through a link) shares a single loaded file system and so a single writer and journal
+    * @param notesFile notes file named by a command
+    * @return the real path of the notes file, or its normalised absolute path if it does not exist yet (or
+    *         is a link to a file whose name does not end in the same notes extension, which tells its format)
+    */
+   private static Path keyFor(File notesFile) {
+      Path path = notesFile.toPath().toAbsolutePath().normalize();
+      String extension = path.toString().endsWith(".notes.gz") ? ".notes.gz" : ".notes";
+      try {
+         Path realPath = path.toRealPath();
+         if (realPath.toString().endsWith(extension)) {
+            return realPath;
+         }
+      } catch (IOException e) {
+         // the notes file does not exist - the command reports it once the file system is opened
+      }
+      return path;
+   }
+
+   /**
+    * Remove the socket when the server stops - file systems are synced once their commands finish,
+    * so nothing is left to write
+    * @param path path of the socket file
+    */
+   private static void shutdown(Path path) {
+      try {
+         Files.deleteIfExists(path);
+      } catch (IOException e) {
+         serverErr.println("The socket " + path + " could not be removed.");
+      }
+   }
+
+   /**
+    * Stream that sends everything written to it to the client as frames of a single type
+    */
+   private static class FrameOutputStream extends OutputStream {
+      private final DataOutputStream out;
+      private final byte type;
+
+      private FrameOutputStream(DataOutputStream out, byte type) {
+         this.out = out;
+         this.type = type;
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+         // output and error frames of a command may be written from more than one thread
+         synchronized (out) {
+            out.writeByte(type);
+            out.writeInt(len);
+            out.write(b, off, len);
+         }
+      }
+
+      @Override
+      public void flush() throws IOException {
+         synchronized (out) {
+            out.flush();
+         }
+      }
+   }
+
+   /**
+    * Standard output or error stream that writes to the stream of the command running on the current
+    * thread, or to the server's own stream on any other thread
+    */
+   private static class CommandOutputStream extends OutputStream {
+      private final ThreadLocal<PrintStream> command;
+      private final PrintStream server;
+
+      private CommandOutputStream(ThreadLocal<PrintStream> command, PrintStream server) {
+         this.command = command;
+         this.server = server;
+      }
+
+      private PrintStream target() {
+         PrintStream stream = command.get();
+         return stream == null ? server : stream;
+      }
+
+      @Override
+      public void write(int b) {
+         target().write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+         target().write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+         target().flush();
+      }
+   }
+
+   /**
+    * Standard input stream that reads the input sent with the command running on the current thread,
+    * or the server's own input on any other thread
+    */
+   private static class CommandInputStream extends InputStream {
+      private final InputStream server;
+
+      private CommandInputStream(InputStream server) {
+         this.server = server;
+      }
+
+      private InputStream target() {
+         InputStream stream = commandIn.get();
+         return stream == null ? server : stream;
+      }
+
+      @Override
+      public int read() throws IOException {
+         return target().read();
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         return target().read(b, off, len);
+      }
+
+      @Override
+      public int available() throws IOException {
+         return target().available();
+      }
+   }
+}
@@ -0,0 +1,75 @@
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Thin client that forwards a command to a running Daemon and relays its output and exit status
+ */
+public class DaemonClient {
+   /**
+    * Send a command to the server and print its output
+    * @param socketPath path of the server's socket
+    * @param args arguments of the command, as they would be given to the program
+    * @return exit status of the command
+    */
+   public static int send(String socketPath, String[] args) {
+      try (SocketChannel server = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+         server.connect(UnixDomainSocketAddress.of(socketPath));
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(server)));
+         DataInputStream in = new DataInputStream(Channels.newInputStream(server));
+
+         // relative paths are resolved by the server against the client's directory
+         out.writeUTF(Path.of("").toAbsolutePath().toString());
+         out.writeInt(args.length);
+         for (String arg : args) {
+            out.writeUTF(arg);
+         }
+         // a batch read from standard input needs the input to be sent along with the command
+         byte[] stdin = new byte[0];
+         if (args.length == 3 && args[0].equalsIgnoreCase("batch") && args[2].equals("-")) {
+            stdin = System.in.readAllBytes();
+         }
+         out.writeInt(stdin.length);
+         out.write(stdin);
+         out.flush();
+
+         // relay output until the exit status arrives
+         while (true) {
+            byte type = in.readByte();
+            if (type == Daemon.EXIT_FRAME) {
+               System.out.flush();
+               return in.readInt();
+            }
+            byte[] data = in.readNBytes(in.readInt());
+            PrintStream stream = type == Daemon.STDERR_FRAME ? System.err : System.out;
+            stream.write(data);
+            stream.flush();
+         }
+      } catch (IOException e) {
+         Util.exitProgram("The server at " + socketPath + " could not be reached.");
+         // dummy return - program will not reach here
+         return 1;
+      }
+   }
+
+   /**
+    * Check if a server is accepting connections on a socket
+    * @param path path of the socket
+    * @return true if a connection could be made, false otherwise
+    */
+   public static boolean isServing(Path path) {
+      try (SocketChannel server = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+         server.connect(UnixDomainSocketAddress.of(path));
+         return true;
+      } catch (IOException e) {
+         return false;
+      }
+   }
+}
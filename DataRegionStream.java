@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Stream over the data lines of an internal file, read directly from its region of the notes file.
+ * The data prefix of each line is dropped and every line ends with "\n", so the stream holds exactly
+ * what would be written out for the file. The region is read either from a shared channel or from a
+ * stream positioned at the start of the region.
+ */
+public class DataRegionStream extends InputStream {
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   // shared channel of the notes file - positional reads leave it untouched for other streams
+   private final FileChannel channel;
+   // stream the region is read from when there is no channel - closed along with this stream
+   private final InputStream source;
+   private final ByteBuffer buffer;
+   private long position;
+   private final long end;
+   // true when the next byte read begins a new line (and is therefore the data prefix)
+   private boolean atLineStart = true;
+   // true directly after a "\r" so that a following "\n" is treated as the same line terminator
+   private boolean skipNewline = false;
+   // true once the final line has been terminated
+   private boolean finished = false;
+
+   /**
+    * Open a stream over a region of data lines
+    * @param channel channel of the notes file holding the data
+    * @param offset byte offset of the first data line
+    * @param length number of bytes taken up by the data lines
+    */
+   public DataRegionStream(FileChannel channel, long offset, long length) {
+      this(channel, null, offset, length);
+   }
+
+   /**
+    * Open a stream over a region of data lines read from a stream
+    * @param source stream positioned at the first data line
+    * @param length number of bytes taken up by the data lines
+    */
+   public DataRegionStream(InputStream source, long length) {
+      this(null, source, 0, length);
+   }
+
+   private DataRegionStream(FileChannel channel, InputStream source, long offset, long length) {
+      this.channel = channel;
+      this.source = source;
+      position = offset;
+      end = offset + length;
+      // small files do not need a full sized buffer
+      buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(length, 1)));
+      buffer.flip();
+   }
+
+   @Override
+   public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+   }
+
+   @Override
+   public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+         return 0;
+      }
+      int count = 0;
+      while (count < len) {
+         if (!buffer.hasRemaining() && !fill()) {
+            // terminate a final line that had no line terminator
+            if (!atLineStart && !finished) {
+               b[off + count++] = '\n';
+               atLineStart = true;
+            }
+            finished = true;
+            break;
+         }
+         byte curr = buffer.get();
+         if (skipNewline) {
+            skipNewline = false;
+            if (curr == '\n') {
+               continue;
+            }
+         }
+         if (atLineStart) {
+            // drop the data prefix
+            atLineStart = false;
+         } else if (curr == '\n' || curr == '\r') {
+            b[off + count++] = '\n';
+            atLineStart = true;
+            skipNewline = curr == '\r';
+         } else {
+            b[off + count++] = curr;
+         }
+      }
+      return count == 0 ? -1 : count;
+   }
+
+   /**
+    * Read the next chunk of the region into the buffer
+    * @return true if more bytes were read, false at the end of the region
+    */
+   private boolean fill() throws IOException {
+      if (position >= end) {
+         return false;
+      }
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), end - position));
+      int read;
+      if (channel != null) {
+         read = channel.read(buffer, position);
+      } else {
+         read = source.read(buffer.array(), 0, buffer.limit());
+         buffer.position(Math.max(read, 0));
+      }
+      buffer.flip();
+      if (read <= 0) {
+         return false;
+      }
+      position += read;
+      return true;
+   }
+
+   @Override
+   public void close() throws IOException {
+      // the shared channel stays open for other streams
+      if (source != null) {
+         source.close();
+      }
+   }
+}
@@ -1,16 +1,144 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
 public class Driver {
+   // directory relative paths are resolved against by the command running on each thread (unset for the
+   // current directory)
+   private static final ThreadLocal<File> baseDirectory = new ThreadLocal<>();
+
    public static void main(String[] args) {
+      try {
+         if (args.length == 2 && args[0].equalsIgnoreCase("serve")) {
+            Daemon.serve(args[1]);
+         } else if (args.length >= 2 && args[0].equals("--socket")) {
+            System.exit(DaemonClient.send(args[1], Arrays.copyOfRange(args, 2, args.length)));
+         } else if (args.length >= 1 && args[0].equals(Stats.STATS_OPTION)) {
+            runWithStats(Arrays.copyOfRange(args, 1, args.length));
+         } else {
+            run(args);
+         }
+      } catch (ProgramExitException e) {
+         // the error has already been reported
+         System.exit(1);
+      }
+   }
 
-      Functions func = new Functions();
-      if (args.length >= 2 && args.length <= 4) {
-         FileSystem.initialiseFS(args[1]);
-         if (FileSystem.fs == null) {
-            Util.exitProgram("The file system could not be loaded.");
+   /**
+    * Load the file system, run the command given by the program arguments on it and close it again
+    * @param args program arguments - the command, the file system and the parameters of the command
+    */
+   private static void run(String[] args) {
+      checkArgumentCount(args);
+      Stats.Command command = Stats.startCommand(args[0].toLowerCase());
+      try {
+         FileSystem fileSystem = new FileSystem(resolve(args[1]));
+         openSession(fileSystem, args);
+         try {
+            execute(fileSystem, args);
+         } catch (RuntimeException e) {
+            // the program exits without writing anything more, but other processes can use the file system
+            fileSystem.releaseProcessLock();
+            throw e;
          }
+         fileSystem.closeFS();
+      } finally {
+         command.finish();
+      }
+   }
+
+   /**
+    * Run the command given by the program arguments, then print the time spent in each phase and the
+    * work counted to standard error (even if the command failed)
+    * @param args program arguments following --stats
+    */
+   private static void runWithStats(String[] args) {
+      if (args.length >= 1 && (args[0].equalsIgnoreCase("serve") || args[0].equals("--socket"))) {
+         Util.exitProgram("The " + Stats.STATS_OPTION + " option can only be used when running a command directly.");
       }
+      Stats.enableDetail();
+      try {
+         run(args);
+      } finally {
+         Stats.print(System.err);
+      }
+   }
+
+   /**
+    * Terminate if the program arguments cannot be a command on a file system
+    * @param args program arguments
+    */
+   public static void checkArgumentCount(String[] args) {
+      if (args.length < 2 || args.length > 4) {
+         Util.exitProgram("An incorrect number of arguments was provided.");
+      }
+   }
+
+   /**
+    * Start the command given by the program arguments on a file system, loading it if required
+    * @param fileSystem the file system named by the program arguments
+    * @param args program arguments - the command followed by the file system
+    */
+   public static void openSession(FileSystem fileSystem, String[] args) {
+      // removing entries leaves the rest of the notes file untouched, and read-only commands leave
+      // compressed file systems untouched
+      String command = args[0].toLowerCase();
+      boolean readOnly = command.equals("list") || command.equals("copyout");
+      fileSystem.openSession(readOnly, !command.equals("rm") && !command.equals("rmdir")
+              && !(readOnly && args[1].endsWith(".gz")));
+   }
 
-      if (args.length == 2) {
-         switch (args[0].toLowerCase()) {
+   /**
+    * Run the command given by the program arguments on a file system with an open session
+    * @param fileSystem the file system named by the program arguments
+    * @param args program arguments - the command, the file system and the parameters of the command
+    */
+   public static void execute(FileSystem fileSystem, String[] args) {
+      Functions func = new Functions(fileSystem);
+      if (args.length == 3 && args[0].equalsIgnoreCase("batch")) {
+         runBatch(fileSystem, func, args[2].equals("-") ? args[2] : resolve(args[2]));
+      } else {
+         runCommand(func, args[0], Arrays.copyOfRange(args, 2, args.length));
+      }
+   }
+
+   /**
+    * Set the directory that relative paths given to commands on the current thread are resolved against
+    * @param directory the directory, or null for the current directory
+    */
+   public static void setBaseDirectory(File directory) {
+      if (directory == null) {
+         baseDirectory.remove();
+      } else {
+         baseDirectory.set(directory);
+      }
+   }
+
+   /**
+    * Resolve a path given to a command against the base directory
+    * @param path path of an external file
+    * @return the path to use for the file
+    */
+   public static String resolve(String path) {
+      File directory = baseDirectory.get();
+      if (directory == null || new File(path).isAbsolute()) {
+         return path;
+      }
+      return new File(directory, path).getPath();
+   }
+
+   /**
+    * Run a single command on the loaded file system
+    * @param func functions used to run the command
+    * @param command name of the command
+    * @param params parameters of the command (the arguments following the file system)
+    */
+   private static void runCommand(Functions func, String command, String[] params) {
+      if (params.length == 0) {
+         switch (command.toLowerCase()) {
             case "list":
                func.list();
                break;
@@ -18,15 +146,15 @@ public class Driver {
                func.defrag();
                break;
             case "index":
-               Util.exitProgram("No implementation required.");
+               func.index();
                break;
             default:
                Util.exitProgram("The command you entered was not valid.");
          }
-      } else if (args.length == 3) {
-         switch (args[0].toLowerCase()) {
+      } else if (params.length == 1) {
+         switch (command.toLowerCase()) {
             case "rm":
-               String fileName = args[2];
+               String fileName = params[0];
                if (fileName.endsWith("/")) {
                   Util.exitProgram("A directory name was provided. Please use the rmdir command to remove directories.");
                } else {
@@ -34,22 +162,25 @@ public class Driver {
                }
                break;
             case "rmdir":
-               String dirName = args[2].endsWith("/") ? args[2] : args[2] + "/";
+               String dirName = params[0].endsWith("/") ? params[0] : params[0] + "/";
                func.rm(dirName);
                break;
             case "mkdir":
-               func.mkDir(args[2]);
+               func.mkDir(params[0]);
+               break;
+            case "convert":
+               func.convert(params[0]);
                break;
             default:
                Util.exitProgram("The command you entered was not valid.");
          }
-      } else if (args.length == 4) {
-         switch (args[0].toLowerCase()) {
+      } else if (params.length == 2) {
+         switch (command.toLowerCase()) {
             case "copyin":
-               func.copyIn(args[2], args[3]);
+               func.copyIn(resolve(params[0]), params[1]);
                break;
             case "copyout":
-               func.copyOut(args[2], args[3]);
+               func.copyOut(params[0], resolve(params[1]));
                break;
             default:
                Util.exitProgram("The command you entered was not valid.");
@@ -57,7 +188,45 @@ public class Driver {
       } else {
          Util.exitProgram("An incorrect number of arguments was provided.");
       }
-      FileSystem.closeFS();
    }
 
+   /**
+    * Run every command of a script on the loaded file system. Each line holds a command followed by its
+    * parameters (without the file system), separated by whitespace; blank lines and lines beginning
+    * with "#" are skipped. Removed lines are written once all commands have run. The batch stops at the
+    * first command that fails, keeping the changes made by the commands before it. The whole file system
+    * is locked whilst the batch runs.
+    * @param fileSystem file system the commands are run on
+    * @param func functions used to run the commands
+    * @param scriptName name of the script file, or "-" to read the script from standard input
+    */
+   private static void runBatch(FileSystem fileSystem, Functions func, String scriptName) {
+      fileSystem.lockAll(true);
+      int lineNumber = 0;
+      try (BufferedReader script = scriptName.equals("-")
+              ? new BufferedReader(new InputStreamReader(System.in))
+              : new BufferedReader(new FileReader(scriptName))) {
+         String line;
+         while ((line = script.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith(Symbol.IGNORE)) {
+               continue;
+            }
+            String[] words = line.split("\\s+");
+            if (words[0].equalsIgnoreCase("batch")) {
+               Util.exitProgram("A batch cannot be run from within a batch.");
+            }
+            runCommand(func, words[0], Arrays.copyOfRange(words, 1, words.length));
+         }
+      } catch (ProgramExitException e) {
+         System.err.println("The batch stopped at line " + lineNumber + " of " + scriptName + ".");
+         fileSystem.sync();
+         throw e;
+      } catch (IOException e) {
+         Util.exitProgram("The batch script could not be read.");
+      } finally {
+         fileSystem.unlockAll(true);
+      }
+   }
 }
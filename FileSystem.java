@@ -1,170 +1,603 @@
 import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+/**
+ * In-memory model of a file system, loaded from its notes file. Several commands can work on the model at
+ * once: each command locks the subtree (first path component) it works on - shared to read it, exclusive
+ * to change it - whilst commands working on the whole file system lock all of it. Other processes are kept
+ * out by a NotesLock, held for as long as any command is running; commands that only read share it with
+ * other readers.
+ */
 public class FileSystem {
-   public static File fs;
-   public static PrintWriter out = null;
-   private static PeekableScanner sc = null;
-   public static ArrayList<InternalFile> allFiles;
+   // number of locks the subtrees of the file system are spread over
+   private static final int SUBTREE_STRIPES = 64;
+
+   public final File fs;
+   public PrintWriter out = null;
+   // stream of the notes file underneath out (null for compressed file systems)
+   public FileOutputStream appendStream = null;
+   // format the notes file is stored in, through which the model is loaded and changes are written
+   public NotesStorage storage = null;
+   public ArrayList<InternalFile> allFiles;
+   public PathIndex index;
+   // blobs holding the data of files stored once for every file with the same content, by hash - only
+   // blobs some file refers to are kept
+   public HashMap<String, Blob> blobs;
+   // byte offset the next appended line will be written at
+   public long appendOffset;
+   // read-only channel of the notes file shared by everything reading file data
+   private FileChannel dataChannel = null;
+   // true if the file system is a .notes.gz file, stored through notes
+   public final boolean compressed;
+   public CompressedNotes notes = null;
+   // write-ahead journal of a plain notes file (null for compressed file systems)
+   public Journal journal = null;
+   // length and modification time of the notes file when it was last synced
+   private long syncedLength;
+   private FileTime syncedModified;
+   // bytes of the notes file taken up by removed or ignored lines
+   private long deadBytes;
+   // offset of the first entry an incremental compaction rewrites - everything before it is live (-1 if
+   // nothing is dead)
+   private long compactFrom = -1;
+   // removed files whose lines are overwritten when the changes are next committed
+   private ArrayList<InternalFile> pendingRemovals;
+
+   // held whilst the lines of an entry are appended, so that the lines of each entry stay together
+   public final Object appendLock = new Object();
+   // shared by commands working on a subtree, exclusive for commands working on the whole file system
+   private final ReentrantReadWriteLock modelLock = new ReentrantReadWriteLock();
+   private final ReentrantReadWriteLock[] subtreeLocks = new ReentrantReadWriteLock[SUBTREE_STRIPES];
+   // lock against other processes, held whilst any command is running
+   private NotesLock processLock = null;
+   // number of commands currently running on the file system
+   private int sessions = 0;
+   // true once the notes file has been loaded into the model
+   private boolean loaded = false;
+   // true if the model may no longer match the notes file and must be loaded again
+   private boolean stale = false;
 
    /**
-    * Initialises file system by loading given .notes file from file name
-    * @param fileName name of file in which to load the file system from
+    * Create a file system for a notes file - nothing is read until a command is started on it
+    * @param fileName name of the file system, with or without the .notes extension
     */
-   public static void initialiseFS(String fileName) {
-      allFiles = new ArrayList<>();
+   public FileSystem(String fileName) {
+      this.fs = fileFor(fileName);
+      this.compressed = fileName.endsWith(".notes.gz");
+      for (int i = 0; i < SUBTREE_STRIPES; i++) {
+         subtreeLocks[i] = new ReentrantReadWriteLock();
+      }
+   }
 
+   /**
+    * Start a command on the file system: lock it against other processes, then load the notes file if it
+    * is not loaded yet or has been changed by something else since it was last synced
+    * @param readOnly true if the command does not change the file system - the lock is then shared with
+    *                 other readers, unless loading the file system has to write to it
+    * @param writeImpliedDirs true to write directories that are only implied by the files inside them
+    *                         to the notes file when loading, false to only create them in memory
+    */
+   public synchronized void openSession(boolean readOnly, boolean writeImpliedDirs) {
+      // terminate program if the file is not found
+      if (!fs.exists()) {
+         Util.exitProgram("The specified file system does not exist.");
+      }
       try {
-         // creates file for filesystem whether you type the extension or not
-         File fileSystem = null;
-         if (fileName.endsWith(".notes")) {
-            fileSystem = new File(fileName);
-         } else if (fileName.endsWith(".notes.gz")) {
-            fileSystem = new File(fileName);
-            Util.decrompressFile(fileSystem);
-         } else {
-            fileSystem = new File(fileName + ".notes");
+         // commands that change the file system wait for any readers sharing the lock to finish
+         while (sessions > 0 && processLock.isShared() && !readOnly) {
+            wait();
          }
+         if (sessions == 0) {
+            processLock = NotesLock.acquire(fs, readOnly);
+            try {
+               if (loaded && (stale || !isUnchanged())) {
+                  unload();
+               }
+               if (!loaded && !initialiseFS(writeImpliedDirs, !processLock.isShared())) {
+                  // loading has to write to the notes file - hold the lock exclusively and load it again
+                  unload();
+                  processLock.release();
+                  processLock = NotesLock.acquire(fs, false);
+                  initialiseFS(writeImpliedDirs, true);
+               }
+            } catch (RuntimeException e) {
+               unload();
+               releaseProcessLock();
+               throw e;
+            }
+         }
+         sessions++;
+      } catch (IOException e) {
+         e.printStackTrace();
+         Util.exitProgram("The file system could not be locked.");
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         Util.exitProgram("The file system could not be locked.");
+      }
+   }
+
+   /**
+    * Finish a command started by openSession. Once no commands are running, every change is synced to the
+    * notes file and the lock against other processes is released.
+    */
+   public synchronized void closeSession() {
+      sessions--;
+      if (sessions == 0) {
+         try {
+            sync();
+            if (stale) {
+               unload();
+            }
+         } finally {
+            releaseProcessLock();
+            notifyAll();
+         }
+      }
+   }
 
+   /**
+    * Mark the model as no longer matching the notes file (after a command failed part way through a
+    * change), so that it is loaded again once the commands running on it have finished
+    */
+   public synchronized void invalidate() {
+      stale = true;
+   }
+
+   /**
+    * Load the file system from its notes file
+    * @param writeImpliedDirs true to write directories that are only implied by the files inside them
+    *                         to the notes file, false to only create them in memory
+    * @param writable true if the notes file may be written to whilst loading
+    * @return true once loaded, false if the notes file has to be written to but is not writable
+    */
+   private boolean initialiseFS(boolean writeImpliedDirs, boolean writable) {
+      countLookups();
+      allFiles = new ArrayList<>();
+      index = new PathIndex();
+      blobs = new HashMap<>();
+      dataChannel = null;
+      notes = null;
+      journal = null;
+      pendingRemovals = new ArrayList<>();
+      stale = false;
+      loaded = true;
+
+      try {
          // terminate program if the file is not found
-         if (!fileSystem.exists()) {
+         if (!fs.exists()) {
             Util.exitProgram("The specified file system does not exist.");
          }
 
-         out = new PrintWriter(new BufferedWriter(new FileWriter(fileSystem.getPath(), true)));
-         fs = fileSystem;
+         // the format is told by the start of the notes file - compressed file systems are always NOTES V1.0
+         storage = !compressed && NotesV2.isV2(fs) ? new NotesV2(this) : new NotesV1(this);
+         Stats.Timer timer = Stats.start(Stats.Phase.LOAD);
+         try {
+            return storage.load(writeImpliedDirs, writable);
+         } finally {
+            timer.stop();
+         }
+      } catch (ProgramExitException e) {
+         throw e;
+      } catch (Exception e) {
+         e.printStackTrace();
+      }
+      return true;
+   }
+
+   /**
+    * Open the writer used to append lines to the notes file, through the journal
+    */
+   public void openAppendWriter() throws IOException {
+      appendStream = new FileOutputStream(fs, true);
+      out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(journal.guard(appendStream))));
+   }
+
+   /**
+    * Get the notes file of a file system from its name
+    * @param fileName name of the file system, with or without the .notes extension
+    * @return the notes file of the file system
+    */
+   public static File fileFor(String fileName) {
+      // creates file for filesystem whether you type the extension or not
+      if (fileName.endsWith(".notes") || fileName.endsWith(".notes.gz")) {
+         return new File(fileName);
+      }
+      return new File(fileName + ".notes");
+   }
+
+   /**
+    * Get the channel used to read file data from the notes file, opening it if required
+    * @return read-only channel of the notes file
+    */
+   public synchronized FileChannel dataChannel() throws IOException {
+      if (dataChannel == null) {
+         dataChannel = FileChannel.open(fs.toPath(), StandardOpenOption.READ);
+      }
+      return dataChannel;
+   }
 
-         // set up scanner for given file system
-         sc = new PeekableScanner(fileSystem);
+   /**
+    * Close the channel used to read file data - required whenever the notes file is replaced
+    */
+   public synchronized void closeDataChannel() throws IOException {
+      if (dataChannel != null) {
+         dataChannel.close();
+         dataChannel = null;
+      }
+   }
 
-         // ensure first line is the correct format (otherwise terminate)
-         if (!sc.hasNextLine()) {
-            Util.exitProgram("The specified file system is empty.");
-         } else if (!sc.nextLine().equals(Symbol.HEADER_TAG)) {
-            Util.exitProgram("File system format is incorrect. It should begin with \"NOTES V1.0\".");
+   /**
+    * Add an internal file to the file system, keeping the path index in sync
+    * @param file the internal file to add
+    */
+   public synchronized void addFile(InternalFile file) {
+      allFiles.add(file);
+      index.add(file);
+   }
+
+   /**
+    * Remove internal files from the file system, keeping the path index in sync
+    * @param files the internal files to remove
+    */
+   public synchronized void removeFiles(Collection<InternalFile> files) {
+      HashSet<InternalFile> toRemove = new HashSet<>(files);
+      allFiles.removeIf(toRemove::contains);
+      for (InternalFile file : toRemove) {
+         Blob blob = file.blob;
+         if (blob != null && file.node != null && file.node.file == file && --blob.references == 0) {
+            // the blob is left in the notes file until it is next rewritten
+            addDeadBytes(blob.offset, Compactor.entryEnd(blob) - blob.offset);
          }
+         index.remove(file);
+      }
+   }
 
-         // prepare file system for being written/appended to
-         initialiseInternalFiles();
+   /**
+    * Register a blob read from the notes file, unless a blob with the same hash is registered already
+    * @param blob the blob
+    */
+   public synchronized void addBlob(Blob blob) {
+      blobs.putIfAbsent(blob.name(), blob);
+   }
+
+   /**
+    * Get the blob to store content in, counting a reference to it: the blob already holding the same
+    * content if there is one, otherwise the given blob, which the caller then writes
+    * @param blob blob of the content, not yet written
+    * @return the blob to refer to
+    */
+   public synchronized Blob shareBlob(Blob blob) {
+      Blob shared = blobs.putIfAbsent(blob.name(), blob);
+      if (shared == null) {
+         shared = blob;
+      } else if (shared.references == 0) {
+         // the blob was dead until now
+         deadBytes -= Compactor.entryEnd(shared) - shared.offset;
+      }
+      shared.references++;
+      return shared;
+   }
 
-         // create any directories that do not exist
-         for (int i = 0; i < allFiles.size(); i++) {
-            Util.recursiveCheckDirs(allFiles.get(i).name, 0);
+   /**
+    * Link every loaded file that refers to a blob to the blob registered with its hash, counting the
+    * references to each blob; blobs no file refers to are forgotten, as they are dead. A file referring to
+    * a blob that is not in the notes file holds the line as its own text.
+    */
+   public void linkBlobs() {
+      for (InternalFile file : allFiles) {
+         if (file.blob == null) {
+            continue;
+         }
+         Blob blob = blobs.get(file.blob.name());
+         if (blob == null) {
+            if (file.blob.offset < 0) {
+               // text copied in before such text was encoded can look like a reference
+               file.blob = null;
+               continue;
+            }
+            // blobs read from the index are only known through the files referring to them
+            blob = file.blob;
+            blobs.put(blob.name(), blob);
          }
+         file.blob = blob;
+         file.isEncoded = blob.isEncoded;
+         file.size = blob.size;
+         blob.references++;
+      }
+      dropUnreferencedBlobs();
+   }
 
-      } catch (Exception e) {
-         e.printStackTrace();
+   /**
+    * Forget the blobs no file refers to
+    */
+   public synchronized void dropUnreferencedBlobs() {
+      blobs.values().removeIf(blob -> blob.references == 0);
+   }
+
+   /**
+    * Set the dead bytes of the notes file, as measured when it is loaded
+    * @param deadBytes bytes of the notes file taken up by removed or ignored lines
+    * @param compactFrom offset of the first entry an incremental compaction has to rewrite (-1 if none)
+    */
+   public synchronized void setDeadBytes(long deadBytes, long compactFrom) {
+      this.deadBytes = deadBytes;
+      this.compactFrom = compactFrom;
+   }
+
+   /**
+    * Count the lines of a removed entry as dead
+    * @param offset offset of the entry's "@"/"=" line
+    * @param length number of bytes taken up by the entry's lines
+    */
+   public synchronized void addDeadBytes(long offset, long length) {
+      deadBytes += length;
+      compactFrom = compactFrom == -1 ? offset : Math.min(compactFrom, offset);
+   }
+
+   /**
+    * Get the number of bytes of the notes file taken up by removed or ignored lines
+    * @return number of dead bytes
+    */
+   public synchronized long deadBytes() {
+      return deadBytes;
+   }
+
+   /**
+    * Get the offset an incremental compaction rewrites the notes file from
+    * @return offset of the first entry that is not kept as it is (-1 if nothing is dead)
+    */
+   public synchronized long compactFrom() {
+      return compactFrom;
+   }
+
+   /**
+    * Remove the lines of internal files from the notes file when the changes are next committed
+    * @param files the internal files whose lines should be removed
+    */
+   public synchronized void removeLines(Collection<InternalFile> files) {
+      pendingRemovals.addAll(files);
+   }
+
+   /**
+    * Forget any pending removals - used once the notes file has been rewritten without the removed files
+    */
+   public synchronized void clearPendingRemovals() {
+      pendingRemovals.clear();
+   }
+
+   /**
+    * Take every pending removal, for the storage to commit along with the changes made since the last commit
+    * @return the internal files whose lines should be removed
+    */
+   public synchronized ArrayList<InternalFile> takePendingRemovals() {
+      ArrayList<InternalFile> removed = pendingRemovals;
+      pendingRemovals = new ArrayList<>();
+      return removed;
+   }
+
+   /**
+    * Lock the subtree holding a file or directory for a command
+    * @param name name of the file or directory the command works on
+    * @param exclusive true if the command changes the subtree, false if it only reads it
+    */
+   public void lockSubtree(String name, boolean exclusive) {
+      modelLock.readLock().lock();
+      ReentrantReadWriteLock lock = subtreeLock(name);
+      if (exclusive) {
+         lock.writeLock().lock();
+      } else {
+         lock.readLock().lock();
       }
    }
 
    /**
-    * Iterate through the file system notes file and initialise all files and directories
+    * Unlock a subtree locked by lockSubtree
+    * @param name name of the file or directory the command works on
+    * @param exclusive true if the subtree was locked exclusively
     */
-   private static void initialiseInternalFiles() {
-      // iterate the file system and convert all data to java objects for easy access
-      boolean reWrite = false;
-      String currLine;
-      while (sc.hasNextLine()) {
-         currLine = sc.nextLine();
+   public void unlockSubtree(String name, boolean exclusive) {
+      ReentrantReadWriteLock lock = subtreeLock(name);
+      if (exclusive) {
+         lock.writeLock().unlock();
+      } else {
+         lock.readLock().unlock();
+      }
+      modelLock.readLock().unlock();
+   }
 
-         // if current line has data - skips over blank lines
-         if (currLine.trim().length() > 0) {
-            // file already exists within the internal file system
-            if (Util.fileExists(currLine.substring(1))) {
-               Util.exitProgram("A duplicate file (" + currLine.substring(1) + ") was found whilst parsing the file system.");
-            }
-            // getting here means file does not already exist in the internal file system
-
-            // truncate line if it exceeds 255 characters - used for file names and directories
-            if (currLine.length() >= Symbol.MAX_CHARS) {
-               // mark the file system for rewriting - the notes file will truncate the data
-               reWrite = true;
-               // preserve the "/" or ".xxx" extension at the end of a file after truncating
-               int lastDotIndex = currLine.lastIndexOf(".");
-               if (currLine.startsWith(Symbol.DIR)) {
-                  currLine = currLine.substring(0, Symbol.MAX_CHARS - 1) + "/";
-               } else {
-                  String extension = currLine.substring(lastDotIndex);
-                  currLine = currLine.substring(0, Symbol.MAX_CHARS - extension.length()) + extension;
-               }
-            }
+   /**
+    * Lock the whole file system for a command
+    * @param exclusive true if the command may change any part of the file system (e.g. defrag), false if
+    *                  it only reads it (e.g. list)
+    */
+   public void lockAll(boolean exclusive) {
+      if (exclusive) {
+         modelLock.writeLock().lock();
+      } else {
+         modelLock.readLock().lock();
+         // subtree locks are always taken in the same order, and other commands only hold one of them
+         for (ReentrantReadWriteLock lock : subtreeLocks) {
+            lock.readLock().lock();
+         }
+      }
+   }
 
-            // handling of invalid names
-            // multiple dots in a row in file
-            if (currLine.contains("..")) {
-               Util.exitProgram("The file " + currLine + " is not correctly formatted (mustn't be named as \"..\").");
-            // files named "."
-            } else if (currLine.contains("/.") || currLine.contains("/./") || currLine.endsWith(".")) {
-               Util.exitProgram("The file " + currLine + " is not correctly formatted (mustn't be named as \".\").");
-            // empty directory names
-            } else if (currLine.contains("//")) {
-               Util.exitProgram("A directory with no name was detected.");
-            // non-valid characters
-            } else if (!currLine.startsWith(Symbol.IGNORE) && !(currLine.substring(1)).matches(Symbol.FILENAME_REGEX)) {
-               Util.exitProgram("An invalid filename was detected.");
-            }
+   /**
+    * Unlock the whole file system locked by lockAll
+    * @param exclusive true if the file system was locked exclusively
+    */
+   public void unlockAll(boolean exclusive) {
+      if (exclusive) {
+         modelLock.writeLock().unlock();
+      } else {
+         for (ReentrantReadWriteLock lock : subtreeLocks) {
+            lock.readLock().unlock();
+         }
+         modelLock.readLock().unlock();
+      }
+   }
 
-            // read a single file
-            if (currLine.startsWith(Symbol.FILE)) {
-               // title of the file
-               String currFileName = currLine.substring(1);
-               // terminate if file name ends with "/"
-               if (currFileName.endsWith("/")) {
-                  Util.exitProgram("The file " + currFileName + " is not correctly formatted (mustn't end with a \"/\").");
-               }
+   /**
+    * Get the lock of the subtree holding a file or directory - a directory and everything inside it share
+    * the lock of their first path component
+    * @param name name of the file or directory
+    * @return the lock of the subtree
+    */
+   private ReentrantReadWriteLock subtreeLock(String name) {
+      int slash = name.indexOf('/');
+      String topComponent = slash == -1 ? name : name.substring(0, slash + 1);
+      return subtreeLocks[Math.floorMod(topComponent.hashCode(), SUBTREE_STRIPES)];
+   }
 
-               ArrayList<String> currFileData = new ArrayList<>();
-               boolean isEncoded = sc.hasNextLine() && sc.peek().equals(Symbol.ENCODED_SHEBANG);
-
-               // iterate through data of current file
-               while (sc.hasNextLine() && sc.peek().startsWith(Symbol.DATA)) {
-                  currLine = sc.nextLine();
-                  // truncate line if it exceeds 255 characters
-                  if (currLine.length() > Symbol.MAX_CHARS) {
-                     currLine = currLine.substring(0, Symbol.MAX_CHARS);
-                     reWrite = true;
-                  }
-                  currFileData.add(currLine.substring(1));
-               }
-               // add the file to allFiles to keep track of it
-               allFiles.add(new InternalFile(currFileName, currFileData, isEncoded));
-               // read a directory
-            } else if (currLine.startsWith(Symbol.DIR)) {
-               // terminate program if the directory is not formatted correctly
-               if (!currLine.endsWith("/")) {
-                  Util.exitProgram("The directory " + currLine.substring(1) + " is not correctly formatted (must end with a \"/\").");
-               }
-               // getting here indicates the directory is formatted correctly
-               String currDirName = currLine.substring(1);
-               allFiles.add(new InternalFile(currDirName));
-               // handle extraneous values
-            } else if (!currLine.startsWith(Symbol.IGNORE)) {
-               Util.exitProgram("An unknown file type was found by the compiler (" + currLine.charAt(0) + ").");
-            }
+   /**
+    * Write every change made so far out to the notes file, keeping the file system loaded so that it can
+    * go on being used
+    */
+   public void sync() {
+      try {
+         writeChanges();
+         syncedLength = fs.length();
+         syncedModified = Files.getLastModifiedTime(fs.toPath());
+      } catch (ProgramExitException e) {
+         throw e;
+      } catch (Exception e) {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * Check if the notes file has not been changed by anything else since it was last synced
+    * @return true if the loaded model still matches the notes file, false otherwise
+    */
+   private boolean isUnchanged() throws IOException {
+      return fs.exists() && fs.length() == syncedLength
+              && Files.getLastModifiedTime(fs.toPath()).equals(syncedModified);
+   }
+
+   /**
+    * Let go of the loaded model without writing anything more to the notes file - used once everything
+    * has been synced
+    */
+   private void unload() {
+      try {
+         if (storage != null) {
+            storage.discard();
          }
+      } catch (IOException e) {
+         e.printStackTrace();
       }
-      // rewrite notes file - a required change was detected
-      if (reWrite) {
-         Util.rewriteNotesFile();
+      countLookups();
+      out = null;
+      storage = null;
+      allFiles = null;
+      index = null;
+      loaded = false;
+   }
+
+   /**
+    * Release the lock against other processes - used directly when the program exits without closing the
+    * file system
+    */
+   public void releaseProcessLock() {
+      try {
+         if (processLock != null) {
+            processLock.release();
+         }
+      } catch (IOException e) {
+         e.printStackTrace();
       }
+      processLock = null;
    }
 
    /**
-    * Clean up the file system variables by closing the PrintWriter and Scanner
+    * Commit every change made since the last commit through the storage of the notes file
     */
-   public static void closeFS() {
+   private void writeChanges() throws IOException {
+      countLookups();
+      Stats.Timer timer = Stats.start(Stats.Phase.COMMIT);
       try {
-         sc.close();
-         out.close();
-         // compress file if it is required
-         if (fs.getName().endsWith(".gz")) {
-            Util.compressFile(fs);
+         storage.commit(processLock != null && !processLock.isShared());
+      } finally {
+         timer.stop();
+      }
+   }
+
+   /**
+    * Add the lookups made through the path index to the stats - they are counted by the index and taken
+    * whenever the changes are written or the model is let go of
+    */
+   private void countLookups() {
+      PathIndex current = index;
+      if (current != null) {
+         Stats.count(Stats.Counter.LOOKUPS, current.takeLookups());
+      }
+   }
+
+   /**
+    * Convert the notes file to the other storage format: every change is committed, the whole file system
+    * is written to a new notes file in the new format, which is moved over the notes file in one step, and
+    * the file system is loaded again from it
+    * @param toV2 true to convert to NOTES V2, false to convert to NOTES V1.0
+    */
+   public void convert(boolean toV2) {
+      try {
+         writeChanges();
+         File tempFile = Util.createTempFile(fs, Symbol.TEMP_EXTENSION);
+         if (toV2) {
+            NotesV2.create(this, tempFile);
+         } else {
+            NotesV1.create(this, tempFile);
+         }
+         replaceNotes(tempFile);
+         // a NOTES V2 file system keeps its own entry table
+         if (toV2) {
+            Files.deleteIfExists(NotesIndex.indexFileFor(fs).toPath());
          }
+      } catch (IOException e) {
+         e.printStackTrace();
+         Util.exitProgram("The file system could not be converted.");
+      }
+   }
+
+   /**
+    * Move a notes file written from the model over the notes file and load the file system again from it
+    * - the caller holds the whole file system exclusively, and every change has been committed
+    * @param tempFile the new notes file (created by Util.createTempFile)
+    */
+   public void replaceNotes(File tempFile) throws IOException {
+      storage.close();
+      Util.replaceFile(tempFile, fs);
+      initialiseFS(true, true);
+   }
+
+   /**
+    * Clean up the file system by committing every change and closing the notes file, then release the
+    * lock against other processes
+    */
+   public void closeFS() {
+      try {
+         writeChanges();
+         storage.close();
+      } catch (ProgramExitException e) {
+         throw e;
       } catch (Exception e) {
          e.printStackTrace();
+      } finally {
+         releaseProcessLock();
+         sessions = 0;
       }
    }
 
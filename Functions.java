@@ -1,73 +1,103 @@
 import java.io.*;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.*;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Class used to handle file system functions
  */
 public class Functions {
+   private static final int LIST_BUFFER_SIZE = 1024 * 1024;
+   // largest file read into memory when copying in a directory - larger files are streamed
+   private static final long PREPARE_LIMIT = 1024 * 1024;
+   // number of files read ahead when copying in a directory, for each thread of the pool
+   private static final int COPY_IN_AHEAD = 4;
+   // number of files written at once when copying out a directory, for each thread of the pool
+   private static final int COPY_OUT_AHEAD = 2;
+
+   // file system the functions work on
+   private final FileSystem fileSystem;
+
+   /**
+    * Create the functions of a file system
+    * @param fileSystem file system the functions work on - a session must be open on it
+    */
+   public Functions(FileSystem fileSystem) {
+      this.fileSystem = fileSystem;
+   }
 
    /**
-    * Iteratively call the listFile function on every file and directory in the file system
+    * List every file and directory in the file system in ls -l format
     */
    public void list() {
+      fileSystem.lockAll(false);
+      try {
+         listFiles();
+      } finally {
+         fileSystem.unlockAll(false);
+      }
+   }
+
+   /**
+    * List every file and directory once the file system is locked
+    */
+   private void listFiles() {
       // sort all files into tree structure
-      Util.treeSort();
-      // find size of all files and store in array - default directories to 512
-      Integer[] fileSizes = new Integer[FileSystem.allFiles.size()];
-      Integer[] hardLinks = new Integer[FileSystem.allFiles.size()];
-      for (int i = 0; i < fileSizes.length; i++) {
-         int fileSize = 0;
-         if (!FileSystem.allFiles.get(i).isDir) {
-            for (String s : FileSystem.allFiles.get(i).data) {
-               fileSize += s.length();
-            }
-         } else {
-            fileSize = 512;
-         }
-         fileSizes[i] = fileSize;
-
-         // calculate number of hard links and store in array
-         hardLinks[i] = 0;
-         for (InternalFile f : FileSystem.allFiles) {
-            if (f.isDir
-                 && f.name.startsWith(FileSystem.allFiles.get(i).name)
-                 && !f.name.equals(FileSystem.allFiles.get(i).name)
-                 && f.name.substring(FileSystem.allFiles.get(i).name.length()).chars().filter(num -> num == '/').count() == 1) {
-               hardLinks[i] += 1;
-            }
-         }
-         // no hard links were found - default to 1
-         if (hardLinks[i] == 0) {
-            hardLinks[i] = 1;
-         }
+      ArrayList<InternalFile> files = Util.treeSort(fileSystem);
+      int[] hardLinks = Util.countHardLinks(fileSystem, files);
+
+      // calculate max file size to adjust width accordingly - default directories to 512
+      long maxFileSize = 0;
+      for (InternalFile file : files) {
+         maxFileSize = Math.max(maxFileSize, file.isDir ? 512 : file.size);
       }
+      int sizeWidth = String.valueOf(maxFileSize).length();
 
-      // list each file
-      FileSystem.allFiles.forEach(file -> {
-         // calculate max file size to adjust width accordingly
-         int maxFileSize = Collections.max(Arrays.asList(fileSizes));
+      // every entry shares the attributes of the notes file - read them once
+      String permissions;
+      String owner;
+      String group;
+      String modified;
+      try {
+         PosixFileAttributes attributes = Files.readAttributes(fileSystem.fs.toPath(), PosixFileAttributes.class);
+         permissions = PosixFilePermissions.toString(attributes.permissions());
+         owner = attributes.owner().getName();
+         group = attributes.group().getName();
+         modified = new SimpleDateFormat("MMM dd HH:mm").format(attributes.lastModifiedTime().toMillis());
+      } catch (IOException e) {
+         e.printStackTrace();
+         return;
+      }
 
-         // format string with variable width for size
-         String format = "%s%s %s %s %s %" + String.valueOf(maxFileSize).length() + "s %s %s%n";
-         try {
-            System.out.printf(format,
-                    file.isDir ? "d" : "-",
-                    PosixFilePermissions.toString(Files.getPosixFilePermissions(FileSystem.fs.toPath())),
-                    hardLinks[FileSystem.allFiles.indexOf(file)],
-                    Files.readAttributes(Paths.get(FileSystem.fs.toURI()), PosixFileAttributes.class).owner().getName(),
-                    Files.readAttributes(Paths.get(FileSystem.fs.toURI()), PosixFileAttributes.class).group().getName(),
-                    fileSizes[FileSystem.allFiles.indexOf(file)],
-                    new SimpleDateFormat("MMM dd HH:mm").format(Files.getLastModifiedTime(FileSystem.fs.toPath()).toMillis()),
-                    file.name
-            );
-         } catch (IOException e) {
-            e.printStackTrace();
+      // list each file
+      PrintWriter listWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), LIST_BUFFER_SIZE));
+      StringBuilder row = new StringBuilder();
+      for (int i = 0; i < files.size(); i++) {
+         InternalFile file = files.get(i);
+         String size = String.valueOf(file.isDir ? 512 : file.size);
+         row.setLength(0);
+         row.append(file.isDir ? "d" : "-").append(permissions).append(' ')
+                 .append(hardLinks[i]).append(' ')
+                 .append(owner).append(' ')
+                 .append(group).append(' ');
+         // right align size to the width of the largest size
+         for (int pad = size.length(); pad < sizeWidth; pad++) {
+            row.append(' ');
          }
-      });
+         row.append(size).append(' ')
+                 .append(modified).append(' ')
+                 .append(file.name());
+         listWriter.println(row);
+      }
+      listWriter.flush();
    }
 
    /**
@@ -76,73 +106,271 @@ public class Functions {
     * @param intFileName name of file to name internally (in .notes file)
     */
    public void copyIn(String extFileName, String intFileName) {
+      Stats.Timer timer = Stats.start(Stats.Phase.COPYIN);
       try {
          // if the provided name was invalid (contains symbols) - terminate program
          if (!intFileName.matches(Symbol.FILENAME_REGEX)) {
             Util.exitProgram("The filename you provided was invalid.");
          }
 
-         // if the external file does not exist or is a directory - terminate program
+         // if the external file does not exist - terminate program
          File extFile = new File(extFileName);
          if (!extFile.exists()) {
             Util.exitProgram("The provided external file does not exist.");
          } else if (extFile.isDirectory()) {
-            Util.exitProgram("Copying directories is not supported.");
-         }
-
-         // remove file if it exists within the file system - to be overwritten
-         if (Util.fileExists(intFileName)) {
-            rm(intFileName);
+            copyInDirectory(extFile, intFileName);
+            return;
          }
 
-         // add new file to file system
+         // the external file is checked before the subtree is locked
          InternalFile intFile = new InternalFile(extFile, intFileName);
-         intFile.addToFileSystem();
+         fileSystem.lockSubtree(intFile.name(), true);
+         try {
+            // remove file if it exists within the file system - to be overwritten
+            if (Util.fileExists(fileSystem, intFileName)) {
+               rm(intFileName);
+            }
 
+            // add new file to file system
+            intFile.addToFileSystem(fileSystem);
+         } finally {
+            fileSystem.unlockSubtree(intFile.name(), true);
+         }
+
+      } catch (ProgramExitException e) {
+         throw e;
       } catch (Exception e) {
          e.printStackTrace();
+      } finally {
+         timer.stop();
       }
 
    }
 
    /**
-    * Copy a file from internal file system into external file system
-    * @param extFileName name of file on your external (actual) system
-    * @param intFileName name of file to name internally (in .notes file)
+    * Copy an external directory and everything inside it into the internal file system. The files are
+    * read and converted on a ForkJoinPool, a bounded number ahead of the one being written, and written
+    * to the notes file in order of their names. Links to directories are not followed.
+    * @param extDir the external directory
+    * @param intDirName name of the internal directory to copy it to
     */
-   public void copyOut(String intFileName, String extFileName) {
+   private void copyInDirectory(File extDir, String intDirName) throws IOException {
+      String root = intDirName.endsWith("/") ? intDirName : intDirName + "/";
+      Path base = extDir.toPath();
+      // internal names of every directory and file to copy in - sorted so that parents come first
+      TreeSet<String> dirNames = new TreeSet<>();
+      TreeMap<String, File> fileNames = new TreeMap<>();
+
+      // walk the whole tree before anything is written, so nothing is copied in if any of it is invalid
       try {
-         InternalFile intFile = Util.getFile(intFileName);
-         if (intFile.isDir) {
-            Util.exitProgram("Copying directories is not supported.");
+         Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+               String relative = base.relativize(dir).toString().replace(File.separatorChar, '/');
+               String name = relative.isEmpty() ? root : root + relative + "/";
+               checkCopyInName(dir, Symbol.DIR + name);
+               dirNames.add(name);
+               return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+               // links to directories (and anything else that is not a file) are skipped
+               if (Files.isRegularFile(file)) {
+                  String name = root + base.relativize(file).toString().replace(File.separatorChar, '/');
+                  checkCopyInName(file, Symbol.FILE + name);
+                  fileNames.put(name, file.toFile());
+               }
+               return FileVisitResult.CONTINUE;
+            }
+         });
+      } catch (IOException e) {
+         Util.exitProgram("The external directory " + extDir + " could not be read.");
+      }
+
+      fileSystem.lockSubtree(root, true);
+      try {
+         // files being copied in replace those that exist already
+         ArrayList<InternalFile> replaced = new ArrayList<>();
+         for (String name : fileNames.keySet()) {
+            InternalFile existing = fileSystem.index.get(name);
+            if (existing != null) {
+               replaced.add(existing);
+            }
+         }
+         if (!replaced.isEmpty()) {
+            fileSystem.removeLines(replaced);
+            fileSystem.removeFiles(replaced);
          }
-         File extFile = new File(extFileName);
 
+         // create all the directories first, including empty ones
+         for (String name : dirNames) {
+            Util.recursiveCheckDirs(fileSystem, name, 0);
+         }
 
-         // file is encoded - decode and write to file
-         if (intFile.isEncoded) {
-            FileOutputStream fos = new FileOutputStream(extFile);
-            StringBuilder fileData = new StringBuilder();
-            // iterate each line in data excluding first line (shebang line)
-            for (int i = 1; i < intFile.data.size(); i++) {
-               fileData.append(intFile.data.get(i));
+         ForkJoinPool pool = ForkJoinPool.commonPool();
+         int maxInFlight = pool.getParallelism() * COPY_IN_AHEAD;
+         ArrayDeque<Future<InternalFile>> inFlight = new ArrayDeque<>();
+         ArrayDeque<File> inFlightFiles = new ArrayDeque<>();
+         Iterator<Map.Entry<String, File>> pending = fileNames.entrySet().iterator();
+         while (pending.hasNext() || !inFlight.isEmpty()) {
+            while (inFlight.size() < maxInFlight && pending.hasNext()) {
+               Map.Entry<String, File> entry = pending.next();
+               String name = entry.getKey();
+               File extFile = entry.getValue();
+               // large files are streamed into the notes file when written rather than held in memory
+               inFlight.add(pool.submit(() -> extFile.length() > PREPARE_LIMIT
+                       ? new InternalFile(extFile, name) : InternalFile.prepare(extFile, name)));
+               inFlightFiles.add(extFile);
             }
-            // decode text and write to file
-            String sbStr = fileData.toString();
-            fos.write(Base64.getDecoder().decode(sbStr));
-         // file is regular file - simply write to file
-         } else {
-            // initialise writer for external file
-            PrintWriter extWriter = new PrintWriter(new BufferedWriter(new FileWriter(extFileName, false)));
-            for (String s : intFile.data) {
-               extWriter.println(s);
+            File extFile = inFlightFiles.poll();
+            try {
+               inFlight.poll().get().addToFileSystem(fileSystem);
+            } catch (ExecutionException e) {
+               e.printStackTrace();
+               Util.exitProgram("The external file " + extFile + " could not be read.");
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               Util.exitProgram("Copying in " + extDir + " was interrupted.");
             }
-            extWriter.flush();
-            extWriter.close();
          }
+      } finally {
+         fileSystem.unlockSubtree(root, true);
+      }
+   }
 
+   /**
+    * Terminate if an external file cannot be copied in under the given name, as the notes file could
+    * not be loaded again
+    * @param extFile the external file
+    * @param line the "@" or "=" line the file would be written with
+    */
+   private static void checkCopyInName(Path extFile, String line) {
+      if (NotesLoader.checkName(line) != null) {
+         Util.exitProgram("The external file " + extFile + " cannot be copied in as " + line.substring(1) + " is not a valid name.");
+      }
+   }
+
+   /**
+    * Copy a file from internal file system into external file system. An internal directory (or the whole
+    * file system, named "/") is copied out to an external directory along with everything inside it.
+    * @param extFileName name of file on your external (actual) system
+    * @param intFileName name of file to name internally (in .notes file)
+    */
+   public void copyOut(String intFileName, String extFileName) {
+      boolean whole = intFileName.equals("/");
+      // a directory may be named without its trailing "/" - the name is resolved before the subtree is
+      // locked, so that the lock taken is the one commands changing the directory take
+      String name = whole ? intFileName : resolveName(intFileName);
+      if (whole) {
+         fileSystem.lockAll(false);
+      } else {
+         fileSystem.lockSubtree(name, false);
+      }
+      Stats.Timer timer = Stats.start(Stats.Phase.COPYOUT);
+      try {
+         File extFile = new File(extFileName);
+         if (whole) {
+            copyOutDirectory(new ArrayList<>(fileSystem.allFiles), "", extFile);
+            return;
+         }
+         InternalFile intFile = Util.getFile(fileSystem, name);
+         if (intFile.isDir) {
+            copyOutDirectory(fileSystem.index.getSubtree(intFile.name()), intFile.name(), extFile);
+         } else {
+            writeOut(intFile, extFile);
+         }
+
+      } catch (ProgramExitException e) {
+         throw e;
       } catch (Exception e) {
          e.printStackTrace();
+      } finally {
+         timer.stop();
+         if (whole) {
+            fileSystem.unlockAll(false);
+         } else {
+            fileSystem.unlockSubtree(name, false);
+         }
+      }
+   }
+
+   /**
+    * Get the name of the entry a command names, which may be a directory named without its trailing "/"
+    * @param intFileName name of the file or directory as given to the command
+    * @return the name of the directory if only a directory has the name, otherwise the name as given
+    */
+   private String resolveName(String intFileName) {
+      if (!intFileName.endsWith("/") && !Util.fileExists(fileSystem, intFileName)
+              && Util.fileExists(fileSystem, intFileName + "/")) {
+         return intFileName + "/";
+      }
+      return intFileName;
+   }
+
+   /**
+    * Copy the files of an internal directory out to an external directory. Every directory is created
+    * first, then the files are written on a ForkJoinPool, a bounded number at a time.
+    * @param files every internal file within the directory, including the directory itself
+    * @param prefix name of the internal directory ("" for the whole file system), removed from each name
+    * @param extDir the external directory to copy the files to
+    */
+   private void copyOutDirectory(List<InternalFile> files, String prefix, File extDir) {
+      // create the skeleton of directories before any files are written into it
+      ArrayList<InternalFile> dataFiles = new ArrayList<>();
+      if (!extDir.isDirectory() && !extDir.mkdirs()) {
+         Util.exitProgram("The external directory " + extDir + " could not be created.");
+      }
+      for (InternalFile file : files) {
+         if (!file.isDir) {
+            dataFiles.add(file);
+            continue;
+         }
+         File dir = new File(extDir, file.name().substring(prefix.length()));
+         if (!dir.isDirectory() && !dir.mkdirs()) {
+            Util.exitProgram("The external directory " + dir + " could not be created.");
+         }
+      }
+
+      ForkJoinPool pool = ForkJoinPool.commonPool();
+      int maxInFlight = pool.getParallelism() * COPY_OUT_AHEAD;
+      ArrayDeque<Future<?>> inFlight = new ArrayDeque<>();
+      ArrayDeque<File> inFlightFiles = new ArrayDeque<>();
+      Iterator<InternalFile> pending = dataFiles.iterator();
+      while (pending.hasNext() || !inFlight.isEmpty()) {
+         while (inFlight.size() < maxInFlight && pending.hasNext()) {
+            InternalFile file = pending.next();
+            File extFile = new File(extDir, file.name().substring(prefix.length()));
+            inFlight.add(pool.submit(() -> {
+               writeOut(file, extFile);
+               return null;
+            }));
+            inFlightFiles.add(extFile);
+         }
+         File extFile = inFlightFiles.poll();
+         try {
+            inFlight.poll().get();
+         } catch (ExecutionException e) {
+            e.printStackTrace();
+            Util.exitProgram("The external file " + extFile + " could not be written.");
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Util.exitProgram("Copying out to " + extDir + " was interrupted.");
+         }
+      }
+   }
+
+   /**
+    * Write the data of an internal file to an external file, decoding it if it is encoded - safe to call
+    * for many files at once
+    * @param intFile the internal file
+    * @param extFile the external file to write
+    */
+   private void writeOut(InternalFile intFile, File extFile) throws IOException {
+      // stream the content of the internal file straight into the external file, decoded as it is read
+      try (InputStream data = intFile.openContent(fileSystem);
+           OutputStream fos = new BufferedOutputStream(new FileOutputStream(extFile))) {
+         data.transferTo(fos);
       }
    }
 
@@ -156,79 +384,53 @@ public class Functions {
       if (!dirName.endsWith("/")) {
          dirName += "/";
       }
-      if (!Util.fileExists(dirName)) {
-         // make full directory path and any subdirectories that do not already exist
-         Util.recursiveCheckDirs(dirName, 0);
-      } else {
-         Util.exitProgram(dirName + " already exists within the file system.");
+      fileSystem.lockSubtree(dirName, true);
+      try {
+         if (!Util.fileExists(fileSystem, dirName)) {
+            // make full directory path and any subdirectories that do not already exist
+            Util.recursiveCheckDirs(fileSystem, dirName, 0);
+         } else {
+            Util.exitProgram(dirName + " already exists within the file system.");
+         }
+      } finally {
+         fileSystem.unlockSubtree(dirName, true);
       }
    }
 
    /**
-    * Remove file/directory from the system by adding an ignore symbol in front of the
-    * respective lines within the file system
+    * Remove file/directory from the system by overwriting the first character of each of the
+    * respective lines within the file system with an ignore symbol
     * @param fileName name of the internal file/directory to remove
     */
    public void rm(String fileName) {
-      InternalFile toDelete = Util.getFile(fileName);
-      PrintWriter extWriter = null;
-      File tempFile = new File(Symbol.TEMP_FILE_NAME);
+      fileSystem.lockSubtree(fileName, true);
+      Stats.Timer timer = Stats.start(Stats.Phase.RM);
+      try {
+         InternalFile toDelete = Util.getFile(fileSystem, fileName);
+         // a directory is removed along with everything inside it
+         List<InternalFile> toRemove = toDelete.isDir ? fileSystem.index.getSubtree(toDelete.name()) : List.of(toDelete);
 
+         fileSystem.removeLines(toRemove);
+         // keep the in-memory file system in sync with the removed lines
+         fileSystem.removeFiles(toRemove);
+      } finally {
+         timer.stop();
+         fileSystem.unlockSubtree(fileName, true);
+      }
+   }
+
+   /**
+    * Write a sidecar index of the file system so that later commands can open it without parsing the notes file
+    */
+   public void index() {
+      fileSystem.lockAll(true);
       try {
-         // prepare temporary file for writing
-         extWriter = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, true)));
-         // prepare scanner on file system
-         PeekableScanner sc = new PeekableScanner(FileSystem.fs);
-
-         // iterate through each line in the file system
-         String currLine;
-         while (sc.hasNextLine()) {
-            currLine = sc.nextLine();
-            // delete a file
-            if (!toDelete.isDir) {
-               // check if the currently scanned item should be deleted
-               if (currLine.substring(1).equals(toDelete.name)) {
-                  // rewrite the line to include an ignore symbol in front
-                  extWriter.println(Symbol.IGNORE + toDelete.name);
-                  // iterate each of the lines of data and include an ignore symbol
-                  for (String line : toDelete.data) {
-                     extWriter.println(Symbol.IGNORE + line);
-                     sc.nextLine();
-                  }
-               // the currently scanned line is not to be deleted - print it as it currently is
-               } else {
-                  extWriter.println(currLine);
-               }
-            // delete a directory (recursively)
-            } else {
-               // if the current line begins with the same path
-               if (currLine.substring(1).startsWith(toDelete.name)) {
-                  // check for a file within the directory
-                  if (currLine.startsWith(Symbol.FILE)) {
-                     // iterate through its data and add the ignore symbol
-                     while (sc.hasNextLine() && sc.peek().startsWith(Symbol.DATA)) {
-                        extWriter.println(Symbol.IGNORE + currLine.substring(1));
-                        currLine = sc.nextLine();
-                     }
-                  }
-                  // rewrite the line to include an ignore symbol in front
-                  extWriter.println(Symbol.IGNORE + currLine.substring(1));
-               // the currently scanned line is not to be deleted - print it as it currently is
-               } else {
-                  extWriter.println(currLine);
-               }
-            }
-         }
-         sc.close();
-         extWriter.flush();
-         extWriter.close();
-         // delete current file system and replace with the temporary file
-         FileSystem.fs.delete();
-         tempFile.renameTo(FileSystem.fs);
-         FileSystem.out = new PrintWriter(new BufferedWriter(new FileWriter(FileSystem.fs.getPath(), true)));
+         fileSystem.storage.index();
       } catch (IOException e) {
-         System.err.println("There was a problem with opening the file.");
+         System.err.println("There was a problem with writing the index.");
          e.printStackTrace();
+      } finally {
+         fileSystem.unlockAll(true);
       }
    }
 
@@ -237,8 +439,36 @@ public class Functions {
     * ignore symbol (#)
     */
    public void defrag() {
-      Util.treeSort();
-      Util.rewriteNotesFile();
+      fileSystem.lockAll(true);
+      try {
+         fileSystem.allFiles = Util.treeSort(fileSystem);
+         fileSystem.storage.rewrite();
+      } finally {
+         fileSystem.unlockAll(true);
+      }
+   }
+
+   /**
+    * Convert the file system to another storage format, rewriting the whole of it
+    * @param format "V1" for the NOTES V1.0 text format, "V2" for the NOTES V2 block container
+    */
+   public void convert(String format) {
+      boolean toV2 = format.equalsIgnoreCase("V2");
+      if (!toV2 && !format.equalsIgnoreCase("V1")) {
+         Util.exitProgram("The format you entered was not valid. It should be V1 or V2.");
+      } else if (toV2 && fileSystem.compressed) {
+         Util.exitProgram("Compressed file systems cannot be converted to NOTES V2.");
+      }
+      fileSystem.lockAll(true);
+      try {
+         String target = toV2 ? NotesV2.MAGIC : Symbol.HEADER_TAG;
+         if (fileSystem.storage.format().equals(target)) {
+            Util.exitProgram("The file system is already in the " + target + " format.");
+         }
+         fileSystem.convert(toV2);
+      } finally {
+         fileSystem.unlockAll(true);
+      }
    }
 
 }
\ No newline at end of file
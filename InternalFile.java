@@ -1,29 +1,64 @@
+import java.io.ByteArrayInputStream;
+import java.io.CharArrayWriter;
 import java.io.File;
 import java.io.FileInputStream;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.Base64;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class InternalFile {
-   public String name;
+   // size of the buffer deflated data is read into whilst it is inflated
+   private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+   // full name of the file until it is indexed - from then on it is held by the file's node in the path
+   // index, as a reference to the parent directory's node and the last component of the name
+   private String name;
+   public PathIndex.Node node;
    public boolean isDir;
-   public ArrayList<String> data;
+   // data lines (without their prefixes, each ending with "\n") held in memory - null when the data is
+   // read from the notes file on demand
+   public byte[] data;
    public boolean isEncoded;
+   // byte offset of the "@"/"=" line within the notes file (-1 if not yet written; for a NOTES V2 file
+   // system, the byte offset of the packed end of the content once written, 0 if there is none)
+   public long offset = -1;
+   // byte offset and length of the data lines within the notes file - for a NOTES V2 file system, the first
+   // block of the data and its length in bytes
+   public long dataOffset = -1;
+   public long dataLength;
+   // number of characters of data, excluding the data prefix of each line (bytes of data for NOTES V2)
+   public long size;
+   // blob holding the data of the file when it is stored once for every file with the same content - null
+   // if the file holds its own data
+   public Blob blob;
+   // external file the data is copied from when the file is added to the file system (also kept for a
+   // prepared file, for storage that holds the bytes of the external file as they are)
+   private File source;
+   // data lines (with their prefixes and newlines) converted from the external file ahead of being added
+   private char[] prepared;
 
    /**
-    * Add an internal file to the system using an external file; used when copying from external files
+    * Add an internal file to the system using an external file; used when copying from external files.
+    * The data is streamed from the external file when the file is added to the file system.
     * @param extFile a File object of the external file
     * @param intFileName the name you would like to associate with the internal file name
     */
    public InternalFile(File extFile, String intFileName) {
       try {
-         this.data = new ArrayList<>();
-         FileInputStream fis = new FileInputStream(extFile);
-         byte[] fileBytes = new byte[(int) extFile.length()];
-         fis.read(fileBytes);
-         fis.close();
-         // if non-ascii character is detected within external file - encode data
-         this.isEncoded = !new String(fileBytes).matches(Symbol.ASCII_CHECK_REGEX);
-         encodeData(fileBytes);
+         // hash the content whilst it is checked, so that it can be stored once for identical files
+         MessageDigest digest = Blob.isEnabled() && Blob.isWorthSharing(extFile.length()) ? Blob.newDigest() : null;
+         // if non-ascii character is detected within external file - encode data (deflated data is always
+         // encoded, as is text that would be read back as a marker)
+         this.isEncoded = !Util.isAscii(extFile, digest) || Util.isDeflated(extFile.length())
+                 || Util.startsWithMarker(extFile);
+         this.source = extFile;
+         if (digest != null) {
+            this.blob = new Blob(Blob.hash(digest), this.isEncoded);
+         }
 
          // truncate file name if it exceeds 254 characters (not 255 to allow for \n)
          if (intFileName.length() > Symbol.MAX_CHARS - 1) {
@@ -37,16 +72,66 @@ public class InternalFile {
    }
 
    /**
-    * Add an internal file to the system using the name and associated data; used for adding files
-    * @param name
-    * @param data
+    * Create an internal file from an external file, reading and converting its data straight away so that
+    * it can be added to the file system without reading the external file again. Safe to call for many
+    * files at once.
+    * @param extFile a File object of the external file
+    * @param intFileName the name you would like to associate with the internal file name
+    * @return the internal file, ready to be added to the file system
+    */
+   public static InternalFile prepare(File extFile, String intFileName) throws IOException {
+      InternalFile file = new InternalFile(intFileName);
+      file.isDir = false;
+      file.source = extFile;
+      byte[] bytes = Files.readAllBytes(extFile.toPath());
+      boolean deflated = Util.isDeflated(bytes.length);
+      // if non-ascii character is detected within external file - encode data (deflated data is always
+      // encoded, as is text that would be read back as a marker)
+      file.isEncoded = deflated || !Util.isAscii(bytes, bytes.length) || Util.startsWithMarker(bytes, bytes.length);
+      if (Blob.isEnabled() && Blob.isWorthSharing(bytes.length)) {
+         MessageDigest digest = Blob.newDigest();
+         digest.update(bytes);
+         file.blob = new Blob(Blob.hash(digest), file.isEncoded);
+      }
+
+      CharArrayWriter lines = new CharArrayWriter(bytes.length + bytes.length / 2 + Symbol.MAX_CHARS);
+      Util.LineSink sink = (line, length) -> {
+         lines.write(line, 0, length);
+         lines.write('\n');
+      };
+      InputStream data = new ByteArrayInputStream(bytes);
+      if (deflated) {
+         lines.write(Symbol.DEFLATED_SHEBANG + "\n");
+         file.size = Symbol.DEFLATED_SHEBANG.length() - 1 + Util.convertDeflatedData(data, sink);
+      } else if (file.isEncoded) {
+         lines.write(Symbol.ENCODED_SHEBANG + "\n");
+         file.size = Symbol.ENCODED_SHEBANG.length() - 1 + Util.convertEncodedData(data, sink);
+      } else {
+         file.size = Util.convertTextData(data, sink);
+      }
+      file.prepared = lines.toCharArray();
+      return file;
+   }
+
+   /**
+    * Add an internal file to the system whose data is only read from the notes file when needed;
+    * used when loading a file system
+    * @param name name of the file
+    * @param isEncoded whether the data of the file is base64 encoded
+    * @param offset byte offset of the file's "@" line
+    * @param dataOffset byte offset of the file's first data line
+    * @param dataLength number of bytes taken up by the file's data lines
+    * @param size number of characters of data
     */
-   public InternalFile(String name, ArrayList<String> data, boolean isEncoded) {
+   public InternalFile(String name, boolean isEncoded, long offset, long dataOffset, long dataLength, long size) {
       this.name = name;
       this.isDir = false;
-      this.data = data;
-      // first line of data within file has non-ascii characters means file should be encoded
+      this.data = null;
       this.isEncoded = isEncoded;
+      this.offset = offset;
+      this.dataOffset = dataOffset;
+      this.dataLength = dataLength;
+      this.size = size;
    }
 
 
@@ -66,60 +151,172 @@ public class InternalFile {
    }
 
    /**
-    * Encode (or keep as is) data of a given file
-    * @param fileBytes array of all bytes of a data file
+    * Get the full name of the file
+    * @return name of the file, including the names of the directories it is within
     */
-   public void encodeData(byte[] fileBytes) {
-      String currLine = "";
-      if (this.isEncoded) {
-         // encode data
-         String encodedData = Base64.getEncoder().encodeToString(fileBytes);
-         int startIndex = 0;
-         // wrap data around every 254 characters
-         while (encodedData.substring(startIndex).length() > Symbol.MAX_CHARS-1) {
-            this.data.add(encodedData.substring(startIndex, startIndex + Symbol.MAX_CHARS-1));
-            startIndex += Symbol.MAX_CHARS-1;
-         }
-         this.data.add(encodedData.substring(startIndex, encodedData.length()));
-      } else {
-         // add each byte to current line until a newline is reached
-         for (byte b : fileBytes) {
-            currLine += (char) b;
-            if (((char) b) == '\n') {
-               this.data.add(currLine);
-               currLine = "";
-            }
-         }
+   public String name() {
+      PathIndex.Node node = this.node;
+      return node != null ? node.path() : this.name;
+   }
+
+   /**
+    * Record the node the file is stored at once it has been indexed, which holds its name from then on
+    * @param node node of the path index holding the file
+    */
+   void indexed(PathIndex.Node node) {
+      this.node = node;
+      this.name = null;
+   }
+
+   /**
+    * Open a stream over the data of the file, reading it from the notes file unless it is held in memory.
+    * Each data line is given without its data prefix and ends with "\n" (a NOTES V2 file system gives the
+    * bytes of the file as they are).
+    * @param fileSystem file system the file belongs to
+    * @return stream of the file's data (empty for a directory)
+    */
+   public InputStream openData(FileSystem fileSystem) throws IOException {
+      if (this.blob != null) {
+         return this.blob.openData(fileSystem);
+      } else if (this.data != null) {
+         return new ByteArrayInputStream(this.data);
+      } else if (this.isDir || this.dataLength == 0) {
+         return InputStream.nullInputStream();
       }
+      return fileSystem.storage.openData(this);
    }
 
    /**
-    * Add the data of a given internal file to the file system notes file
+    * Open a stream over the content of the file as it was copied in, decoding (and inflating) its data if
+    * it is encoded
+    * @param fileSystem file system the file belongs to
+    * @return stream of the file's content (empty for a directory)
     */
-   public void addToFileSystem() {
-      Util.recursiveCheckDirs(this.name, 0);
-      // print initial prefix for file ("=" for directory, "@" for file)
-      if (this.isDir) {
-         Util.writeToFile(Symbol.DIR);
-      } else {
-         Util.writeToFile(Symbol.FILE);
+   public InputStream openContent(FileSystem fileSystem) throws IOException {
+      InputStream data = openData(fileSystem);
+      if (!this.isEncoded) {
+         return data;
+      }
+      // skip first line (shebang line) - the decoder ignores the newlines between the remaining lines
+      StringBuilder shebang = new StringBuilder();
+      int curr;
+      while ((curr = data.read()) != '\n' && curr != -1) {
+         shebang.append((char) curr);
       }
+      data = Base64.getMimeDecoder().wrap(data);
+      if (!shebang.toString().equals(Symbol.DEFLATED_SHEBANG.substring(Symbol.DATA.length()))) {
+         return data;
+      }
+      // only this file is inflated, straight from its own lines
+      return new InflaterInputStream(data, new Inflater(), INFLATE_BUFFER_SIZE) {
+         @Override
+         public void close() throws IOException {
+            try {
+               super.close();
+            } finally {
+               inf.end();
+            }
+         }
+      };
+   }
 
-      // print the name of the file
-      Util.writeLineToFile(this.name);
+   /**
+    * Open the external file the data is copied from, for storage that holds the bytes of the file as they
+    * are rather than as data lines - nothing is left to be written from the external file afterwards
+    * @return stream of the external file, empty if there is nothing to copy
+    */
+   public InputStream openSource() throws IOException {
+      File source = this.source;
+      this.source = null;
+      this.prepared = null;
+      return source == null ? InputStream.nullInputStream() : new FileInputStream(source);
+   }
 
-      if (this.isEncoded) {
-         Util.writeLineToFile(Symbol.ENCODED_SHEBANG);
+   /**
+    * Add a given internal file to the file system and write it to the notes file. The file is written in
+    * one go, so commands adding files to other subtrees wait for it to be written.
+    * @param fileSystem file system to add the file to
+    */
+   public void addToFileSystem(FileSystem fileSystem) {
+      synchronized (fileSystem.appendLock) {
+         Util.recursiveCheckDirs(fileSystem, this.name(), 0);
+         fileSystem.addFile(this);
+         fileSystem.storage.write(this);
       }
+   }
 
-      // print the data of the file (if applicable: a directory will not contain any data)
-      for (String s : data) {
-         if (this.isEncoded) {
-            Util.writeLineToFile(Symbol.DATA + s);
-         } else {
-            Util.writeToFile(Symbol.DATA + s);
+   /**
+    * Append the lines of a file that has just been added to the file system to a NOTES V1.0 notes file -
+    * the caller holds the file system's append lock. A file whose content is already stored as a blob only
+    * refers to it, and a file whose content is new to the file system has its data written as a blob first
+    * when deduplication is on.
+    * @param fileSystem file system the file was added to
+    */
+   public void appendLines(FileSystem fileSystem) {
+      if (this.blob != null) {
+         Blob shared = fileSystem.shareBlob(this.blob);
+         if (shared == this.blob) {
+            // the content is new - write it as a blob for this and later files to refer to
+            shared.offset = fileSystem.appendOffset;
+            Util.writeLineToFile(fileSystem, Symbol.BLOB + shared.name());
+            shared.dataOffset = fileSystem.appendOffset;
+            appendData(fileSystem);
+            shared.size = this.size;
+            shared.dataLength = fileSystem.appendOffset - shared.dataOffset;
          }
+         this.blob = shared;
+         this.isEncoded = shared.isEncoded;
+         this.size = shared.size;
+         this.source = null;
+         this.prepared = null;
+      }
+      this.offset = fileSystem.appendOffset;
+      // print initial prefix for file followed by the name of the file
+      Util.writeLineToFile(fileSystem, Symbol.FILE + this.name());
+
+      // print the data of the file
+      this.dataOffset = fileSystem.appendOffset;
+      if (this.blob != null) {
+         Util.writeLineToFile(fileSystem, Blob.referenceLine(this.blob.name()));
+      } else {
+         appendData(fileSystem);
       }
+      this.dataLength = fileSystem.appendOffset - this.dataOffset;
+   }
 
+   /**
+    * Append the data lines of the file, converted from the external file it is copied from - the caller
+    * holds the file system's append lock
+    * @param fileSystem file system to append to
+    */
+   private void appendData(FileSystem fileSystem) {
+      if (this.prepared != null) {
+         // prepared lines are all ascii, so each character is written as a single byte
+         fileSystem.out.write(this.prepared);
+         fileSystem.appendOffset += this.prepared.length;
+         this.prepared = null;
+         this.source = null;
+      } else if (this.source != null) {
+         try {
+            InputStream fis = new FileInputStream(this.source);
+            if (this.isEncoded && Util.isDeflated(this.source.length())) {
+               Util.writeLineToFile(fileSystem, Symbol.DEFLATED_SHEBANG);
+               this.size = Symbol.DEFLATED_SHEBANG.length() - 1 + Util.appendDeflatedData(fileSystem, fis);
+            } else if (this.isEncoded) {
+               Util.writeLineToFile(fileSystem, Symbol.ENCODED_SHEBANG);
+               this.size = Symbol.ENCODED_SHEBANG.length() - 1 + Util.appendEncodedData(fileSystem, fis);
+            } else {
+               this.size = Util.appendTextData(fileSystem, fis);
+            }
+            fis.close();
+         } catch (IOException e) {
+            e.printStackTrace();
+            // the file has only been partly written
+            fileSystem.invalidate();
+            Util.exitProgram("The external file could not be read.");
+         }
+         // the data is now read back from the notes file rather than from the external file
+         this.source = null;
+      }
    }
 }
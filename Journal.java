@@ -0,0 +1,340 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of a plain notes file, kept beside it as FS.journal whilst the file system is open,
+ * so that a crash part way through a change leaves the file system as it was after the last commit.
+ * Changes are committed in groups - every command run since the last sync - so a group costs at most four
+ * fsyncs however many commands it holds:
+ *
+ * 1. before the first appended line of a group reaches the notes file, a BEGIN record holding the length
+ *    of the notes file is forced to the journal
+ * 2. on commit the appended lines are forced, then a COMMIT record listing the regions of every removed
+ *    entry is forced to the journal
+ * 3. the removed lines are overwritten with the ignore symbol in place and forced, and the journal is
+ *    emptied for the next group
+ *
+ * Recovery, when the file system is next opened, overwrites the regions of every committed group again
+ * (which is harmless if they were already written) and cuts off any lines appended after a BEGIN record
+ * that was never committed, as the commands that appended them never finished. A journal written for a
+ * notes file that has since been replaced (e.g. by defrag) is discarded.
+ *
+ * Each record is framed by its length and a CRC32 checksum, so a record torn by a crash is ignored.
+ */
+public class Journal {
+   public static final String EXTENSION = ".journal";
+   private static final byte HEADER = 'H';
+   private static final byte BEGIN = 'B';
+   private static final byte COMMIT = 'C';
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final File notes;
+   private final File journalFile;
+   private FileChannel journal = null;
+   private FileChannel notesChannel = null;
+   // true once a BEGIN record has been written for the current group
+   private boolean begun = false;
+   // true if the journal holds records of the current group (false once emptied)
+   private boolean written = false;
+
+   /**
+    * Create the journal of a notes file - nothing is written until the file system is changed
+    * @param notes the notes file
+    */
+   public Journal(File notes) {
+      this.notes = notes;
+      this.journalFile = journalFileFor(notes);
+   }
+
+   /**
+    * Get the journal file of a notes file
+    * @param notes the notes file
+    * @return the journal file beside it
+    */
+   public static File journalFileFor(File notes) {
+      return new File(notes.getPath() + EXTENSION);
+   }
+
+   /**
+    * Check if a notes file has to be recovered from its journal before it is loaded
+    * @param notes the notes file
+    * @return true if the journal holds records, false otherwise
+    */
+   public static boolean needsRecovery(File notes) {
+      return journalFileFor(notes).length() > 0;
+   }
+
+   /**
+    * Wrap the stream lines are appended to the notes file through, so that the group is begun before
+    * anything appended reaches the notes file
+    * @param out stream appending to the notes file
+    * @return stream to append through instead
+    */
+   public OutputStream guard(OutputStream out) {
+      return new FilterOutputStream(out) {
+         @Override
+         public void write(int b) throws IOException {
+            begin();
+            out.write(b);
+         }
+
+         @Override
+         public void write(byte[] b, int off, int len) throws IOException {
+            begin();
+            out.write(b, off, len);
+         }
+      };
+   }
+
+   /**
+    * Begin a group of changes by recording the length of the notes file, unless it has begun already
+    */
+   private synchronized void begin() throws IOException {
+      if (!begun) {
+         ByteArrayOutputStream record = new ByteArrayOutputStream();
+         DataOutputStream dos = new DataOutputStream(record);
+         dos.writeByte(BEGIN);
+         dos.writeLong(notes.length());
+         append(record.toByteArray());
+         journal.force(false);
+         begun = true;
+      }
+   }
+
+   /**
+    * Commit the group of changes made since the last commit: the lines appended to the notes file and the
+    * removal of the given regions, which are then overwritten in place
+    * @param removed start and end offsets of the regions of every removed entry, in order
+    */
+   public synchronized void commit(List<long[]> removed) throws IOException {
+      if (!begun && removed.isEmpty()) {
+         return;
+      }
+      if (begun) {
+         // appended lines reach the disk before the group that holds them is committed
+         notesChannel().force(false);
+      }
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(record);
+      dos.writeByte(COMMIT);
+      dos.writeInt(removed.size());
+      for (long[] region : removed) {
+         dos.writeLong(region[0]);
+         dos.writeLong(region[1]);
+      }
+      append(record.toByteArray());
+      journal.force(false);
+
+      if (!removed.isEmpty()) {
+         tombstone(removed);
+         notesChannel().force(false);
+      }
+      // the group is on disk - it is no longer needed
+      journal.truncate(0);
+      begun = false;
+      written = false;
+   }
+
+   /**
+    * Bring the notes file back to the state of the last commit, then empty the journal. Used when the file
+    * system is opened, whilst it is locked against other processes.
+    */
+   public synchronized void recover() throws IOException {
+      List<long[]> removed = new ArrayList<>();
+      long committedLength = -1;
+      long journalLength = journalFile.length();
+      try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)))) {
+         byte[] payload = readRecord(dis, journalLength);
+         // a journal written before the notes file was replaced no longer applies
+         if (payload != null && payload[0] == HEADER && fields(payload).readUTF().equals(fileKey())) {
+            while ((payload = readRecord(dis, journalLength)) != null) {
+               DataInputStream record = fields(payload);
+               if (payload[0] == BEGIN) {
+                  committedLength = record.readLong();
+               } else if (payload[0] == COMMIT) {
+                  int count = record.readInt();
+                  for (int i = 0; i < count; i++) {
+                     removed.add(new long[]{record.readLong(), record.readLong()});
+                  }
+                  committedLength = -1;
+               }
+            }
+         }
+      }
+
+      if (!removed.isEmpty()) {
+         tombstone(removed);
+      }
+      if (committedLength != -1 && notes.length() > committedLength) {
+         // lines appended by commands that never finished
+         notesChannel().truncate(committedLength);
+      }
+      if (notesChannel != null) {
+         notesChannel.force(false);
+      }
+      // the journal must not be replayed again once the notes file has changed after recovery
+      try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+         channel.truncate(0);
+         channel.force(false);
+      }
+      if (notesChannel != null) {
+         notesChannel.close();
+         notesChannel = null;
+      }
+      Files.delete(journalFile.toPath());
+   }
+
+   /**
+    * Forget the current group after the notes file has been replaced by a rewritten one, which holds
+    * every change made so far
+    */
+   public synchronized void reset() throws IOException {
+      if (notesChannel != null) {
+         notesChannel.close();
+         notesChannel = null;
+      }
+      if (journal != null) {
+         journal.truncate(0);
+         journal.force(false);
+      }
+      begun = false;
+      written = false;
+   }
+
+   /**
+    * Close the journal, deleting the journal file if it was written by this journal and every change it
+    * holds has been committed (a journal left by a command that stopped part way is kept for recovery)
+    */
+   public synchronized void close() throws IOException {
+      if (notesChannel != null) {
+         notesChannel.close();
+         notesChannel = null;
+      }
+      if (journal != null) {
+         journal.close();
+         journal = null;
+         if (!begun) {
+            Files.deleteIfExists(journalFile.toPath());
+         }
+      }
+   }
+
+   /**
+    * Append a record to the journal, starting the journal with a header naming the notes file if it is empty
+    * @param payload the record, starting with its type
+    */
+   private void append(byte[] payload) throws IOException {
+      if (journal == null) {
+         boolean created = !journalFile.exists();
+         journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         journal.truncate(0);
+         if (created) {
+            // the journal must still be found after a crash
+            Util.forceDirectory(journalFile);
+         }
+      }
+      if (!written) {
+         ByteArrayOutputStream header = new ByteArrayOutputStream();
+         DataOutputStream dos = new DataOutputStream(header);
+         dos.writeByte(HEADER);
+         dos.writeUTF(fileKey());
+         writeRecord(header.toByteArray());
+         written = true;
+      }
+      writeRecord(payload);
+   }
+
+   /**
+    * Write a single record framed by its length and checksum at the end of the journal
+    * @param payload the record
+    */
+   private void writeRecord(byte[] payload) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      ByteBuffer frame = ByteBuffer.allocate(payload.length + Integer.BYTES + Long.BYTES);
+      frame.putInt(payload.length).put(payload).putLong(crc.getValue()).flip();
+      long position = journal.size();
+      while (frame.hasRemaining()) {
+         position += journal.write(frame, position);
+      }
+   }
+
+   /**
+    * Read a single record, checking its checksum
+    * @param dis stream of the journal
+    * @param journalLength length of the journal - no record can be longer
+    * @return the record, or null at the end of the journal or at a torn record
+    */
+   private static byte[] readRecord(DataInputStream dis, long journalLength) throws IOException {
+      try {
+         int length = dis.readInt();
+         if (length <= 0 || length > journalLength) {
+            return null;
+         }
+         byte[] payload = new byte[length];
+         dis.readFully(payload);
+         CRC32 crc = new CRC32();
+         crc.update(payload);
+         return dis.readLong() == crc.getValue() ? payload : null;
+      } catch (EOFException e) {
+         return null;
+      }
+   }
+
+   /**
+    * Open a stream over the fields of a record, which follow its type
+    * @param payload the record
+    * @return stream of the fields
+    */
+   private static DataInputStream fields(byte[] payload) {
+      return new DataInputStream(new ByteArrayInputStream(payload, 1, payload.length - 1));
+   }
+
+   /**
+    * Overwrite the start of every line within the given regions of the notes file with the ignore symbol
+    * @param regions start and end offsets of each region, in order
+    */
+   private void tombstone(List<long[]> regions) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      for (long[] region : regions) {
+         Util.tombstoneRegion(notesChannel(), region[0], region[1], buffer);
+      }
+   }
+
+   /**
+    * Get the channel used to overwrite and force the notes file, opening it if required
+    * @return read-write channel of the notes file
+    */
+   private FileChannel notesChannel() throws IOException {
+      if (notesChannel == null) {
+         notesChannel = FileChannel.open(notes.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      }
+      return notesChannel;
+   }
+
+   /**
+    * Get a key identifying the notes file itself rather than its name, which changes when it is replaced
+    * @return the file key of the notes file, or an empty string if the platform has none
+    */
+   private String fileKey() throws IOException {
+      Object key = Files.readAttributes(notes.toPath(), BasicFileAttributes.class).fileKey();
+      return key == null ? "" : key.toString();
+   }
+}
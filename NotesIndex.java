@@ -0,0 +1,167 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binary sidecar index (FS.notes.idx) recording where every entry lives within a notes file, along with
+ * the blobs the entries refer to (written first, so that references are resolved as files are read).
+ * The index is only trusted while the size and modification time of the notes file match
+ * the values recorded when it was written.
+ */
+public class NotesIndex {
+   // "VSFI" in ascii
+   private static final int MAGIC = 0x56534649;
+   private static final int VERSION = 2;
+   private static final String EXTENSION = ".idx";
+
+   /**
+    * Get the sidecar index file belonging to a notes file
+    * @param notesFile the notes file of the file system
+    * @return the index file (which may not exist)
+    */
+   public static File indexFileFor(File notesFile) {
+      return new File(notesFile.getPath() + EXTENSION);
+   }
+
+   /**
+    * Write the index for a notes file
+    * @param notesFile the notes file of the file system
+    * @param files all internal files of the file system, with their offsets
+    */
+   public static void write(File notesFile, List<InternalFile> files) throws IOException {
+      File indexFile = indexFileFor(notesFile);
+      File tempFile = Util.createTempFile(indexFile, Symbol.TEMP_EXTENSION);
+      DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+      dos.writeInt(MAGIC);
+      dos.writeInt(VERSION);
+      dos.writeLong(notesFile.length());
+      dos.writeLong(lastModified(notesFile));
+      LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>();
+      for (InternalFile file : files) {
+         if (file.blob != null) {
+            blobs.putIfAbsent(file.blob.name(), file.blob);
+         }
+      }
+      dos.writeInt(blobs.size());
+      for (Blob blob : blobs.values()) {
+         dos.writeUTF(blob.name());
+         dos.writeBoolean(blob.isEncoded);
+         dos.writeLong(blob.offset);
+         dos.writeLong(blob.dataOffset);
+         dos.writeLong(blob.dataLength);
+         dos.writeLong(blob.size);
+      }
+      dos.writeInt(files.size());
+      for (InternalFile file : files) {
+         dos.writeUTF(file.name());
+         dos.writeBoolean(file.isDir);
+         dos.writeBoolean(file.isEncoded);
+         dos.writeLong(file.offset);
+         dos.writeLong(file.dataOffset);
+         dos.writeLong(file.dataLength);
+         dos.writeLong(file.size);
+         // hash of the blob holding the file's data, empty if the file holds its own
+         dos.writeUTF(file.blob == null ? "" : file.blob.name());
+      }
+      dos.close();
+      // replace the old index in one step so a reader never sees a partially written index - it can be read
+      // by whoever can read the notes file
+      Util.replaceFile(tempFile, indexFile, notesFile);
+   }
+
+   /**
+    * Read the internal files recorded in the index of a notes file
+    * @param notesFile the notes file of the file system
+    * @return all internal files in the order they were indexed, null if the index is missing, stale or unreadable
+    */
+   public static ArrayList<InternalFile> read(File notesFile) {
+      try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFileFor(notesFile))))) {
+         if (!readHeader(dis, notesFile)) {
+            return null;
+         }
+         int blobCount = dis.readInt();
+         HashMap<String, Blob> blobs = new HashMap<>();
+         for (int i = 0; i < blobCount; i++) {
+            Blob blob = new Blob(dis.readUTF(), dis.readBoolean(), dis.readLong(), dis.readLong(), dis.readLong(),
+                    dis.readLong());
+            blobs.put(blob.name(), blob);
+         }
+         int count = dis.readInt();
+         ArrayList<InternalFile> files = new ArrayList<>(count);
+         for (int i = 0; i < count; i++) {
+            String name = dis.readUTF();
+            boolean isDir = dis.readBoolean();
+            boolean isEncoded = dis.readBoolean();
+            long offset = dis.readLong();
+            long dataOffset = dis.readLong();
+            long dataLength = dis.readLong();
+            long size = dis.readLong();
+            String blobHash = dis.readUTF();
+            InternalFile file;
+            if (isDir) {
+               file = new InternalFile(name);
+               file.offset = offset;
+            } else {
+               file = new InternalFile(name, isEncoded, offset, dataOffset, dataLength, size);
+            }
+            if (!blobHash.isEmpty()) {
+               file.blob = blobs.get(blobHash);
+               if (file.blob == null) {
+                  return null;
+               }
+            }
+            files.add(file);
+         }
+         return files;
+      } catch (IOException e) {
+         // an unreadable index is treated the same as a stale one
+         return null;
+      }
+   }
+
+   /**
+    * Check if the index of a notes file exists and matches the current notes file
+    * @param notesFile the notes file of the file system
+    * @return true if the index can be used to open the file system, false otherwise
+    */
+   public static boolean isFresh(File notesFile) {
+      try (DataInputStream dis = new DataInputStream(new FileInputStream(indexFileFor(notesFile)))) {
+         return readHeader(dis, notesFile);
+      } catch (IOException e) {
+         return false;
+      }
+   }
+
+   /**
+    * Read the index header and compare it against the notes file
+    * @param dis stream positioned at the start of the index
+    * @param notesFile the notes file of the file system
+    * @return true if the header is valid and the notes file is unchanged, false otherwise
+    */
+   private static boolean readHeader(DataInputStream dis, File notesFile) throws IOException {
+      return dis.readInt() == MAGIC
+              && dis.readInt() == VERSION
+              && dis.readLong() == notesFile.length()
+              && dis.readLong() == lastModified(notesFile);
+   }
+
+   /**
+    * Get the modification time of a file at the full precision of the underlying file system
+    * @param file file to check
+    * @return modification time in nanoseconds
+    */
+   private static long lastModified(File file) throws IOException {
+      return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+   }
+}
@@ -0,0 +1,381 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parses the entries of a notes file into the internal files of a file system. A plain notes file is
+ * split into chunks which are parsed and validated in parallel on a ForkJoinPool. Each chunk boundary is
+ * moved forward to the next line beginning with "@", "=" or "#", as data lines never follow those lines,
+ * so every entry is parsed whole by a single chunk. The chunks are then merged in order, checking for
+ * duplicate names across the whole file system, so errors are reported as they would be by a single pass.
+ * The size of each chunk is read from the vsfs.load.chunkSize system property.
+ */
+public class NotesLoader {
+   public static final String CHUNK_SIZE_PROPERTY = "vsfs.load.chunkSize";
+   private static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+   private static final int MIN_CHUNK_SIZE = 4 * 1024;
+
+   /**
+    * Parse the entries of a plain notes file, splitting it into chunks parsed in parallel
+    * @param fileSystem file system the entries are added to
+    * @param start offset of the first line after the header
+    * @return true if the notes file has to be rewritten (as lines had to be truncated), false otherwise
+    */
+   public static boolean load(FileSystem fileSystem, long start) throws IOException {
+      Stats.Timer timer = Stats.start(Stats.Phase.PARSE);
+      try {
+         return loadChunks(fileSystem, start);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   /**
+    * Split a plain notes file into chunks, parse them in parallel and add their entries in order
+    * @param fileSystem file system the entries are added to
+    * @param start offset of the first line after the header
+    * @return true if the notes file has to be rewritten (as lines had to be truncated), false otherwise
+    */
+   private static boolean loadChunks(FileSystem fileSystem, long start) throws IOException {
+      long end = fileSystem.fs.length();
+      int chunkSize = chunkSize();
+      int chunkCount = (int) Math.max(1, (end - start + chunkSize - 1) / chunkSize);
+      if (chunkCount == 1) {
+         // not worth handing to the pool
+         return merge(fileSystem, parseRange(fileSystem, start, start, end));
+      }
+
+      ForkJoinPool pool = ForkJoinPool.commonPool();
+      ArrayList<Future<Chunk>> chunks = new ArrayList<>(chunkCount);
+      for (int i = 0; i < chunkCount; i++) {
+         long from = start + (long) i * chunkSize;
+         long to = Math.min(end, from + chunkSize);
+         chunks.add(pool.submit(() -> parseRange(fileSystem, start, from, to)));
+      }
+      boolean reWrite = false;
+      for (Future<Chunk> chunk : chunks) {
+         reWrite |= merge(fileSystem, await(chunk));
+      }
+      return reWrite;
+   }
+
+   /**
+    * Parse the entries of a notes file being read in a single pass (used for compressed file systems)
+    * @param fileSystem file system the entries are added to
+    * @param reader reader positioned at the first line after the header - read to the end
+    * @return true if the notes file has to be rewritten (as lines had to be truncated), false otherwise
+    */
+   public static boolean load(FileSystem fileSystem, NotesReader reader) throws IOException {
+      Stats.Timer timer = Stats.start(Stats.Phase.PARSE);
+      try {
+         long start = reader.lineOffset();
+         Chunk chunk = parse(fileSystem, reader);
+         chunk.bytes = reader.lineOffset() - start;
+         return merge(fileSystem, chunk);
+      } finally {
+         timer.stop();
+      }
+   }
+
+   /**
+    * Add the entries of a parsed chunk to the file system, terminating at the first duplicate name or
+    * at the error that stopped the chunk being parsed
+    * @param fileSystem file system the entries are added to
+    * @param chunk the parsed chunk
+    * @return true if the chunk had lines that had to be truncated, false otherwise
+    */
+   private static boolean merge(FileSystem fileSystem, Chunk chunk) {
+      Stats.count(Stats.Counter.LINES_READ, chunk.lines);
+      Stats.count(Stats.Counter.BYTES_READ, chunk.bytes);
+      if (chunk.validateNanos > 0) {
+         Stats.add(Stats.Phase.VALIDATE, chunk.validateNanos);
+      }
+      for (InternalFile file : chunk.files) {
+         // file already exists within the internal file system
+         if (Util.fileExists(fileSystem, file.name())) {
+            Util.exitProgram("A duplicate file (" + file.name() + ") was found whilst parsing the file system.");
+         }
+         fileSystem.addFile(file);
+      }
+      for (Blob blob : chunk.blobs) {
+         fileSystem.addBlob(blob);
+      }
+      if (chunk.error != null) {
+         Util.exitProgram(chunk.error);
+      }
+      return chunk.reWrite;
+   }
+
+   /**
+    * Parse the entries of the chunk of a plain notes file that covers a nominal byte range
+    * @param fileSystem file system being loaded
+    * @param bodyStart offset of the first line after the header
+    * @param from nominal start of the range
+    * @param to nominal end of the range
+    * @return the parsed chunk
+    */
+   private static Chunk parseRange(FileSystem fileSystem, long bodyStart, long from, long to) throws IOException {
+      long chunkStart = from == bodyStart ? from : nextBoundary(fileSystem, from);
+      long chunkEnd = nextBoundary(fileSystem, to);
+      if (chunkStart >= chunkEnd) {
+         // the range falls within the data of a single file, which belongs to an earlier chunk
+         return new Chunk();
+      }
+      NotesReader reader = new NotesReader(fileSystem.fs, chunkStart, chunkEnd);
+      try {
+         Chunk chunk = parse(fileSystem, reader);
+         chunk.bytes = chunkEnd - chunkStart;
+         return chunk;
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Find the first line at or after an offset that begins an entry or is ignored
+    * @param fileSystem file system being loaded
+    * @param offset offset to search from
+    * @return offset of the line, or the length of the notes file if there is none
+    */
+   private static long nextBoundary(FileSystem fileSystem, long offset) throws IOException {
+      long end = fileSystem.fs.length();
+      if (offset >= end) {
+         return end;
+      }
+      // start from the byte before so that a line beginning exactly at the offset is found
+      NotesReader reader = new NotesReader(fileSystem.fs, offset - 1, end);
+      try {
+         reader.skipLine();
+         while (reader.hasNextLine() && !isBoundary(reader.peekChar())) {
+            reader.skipLine();
+         }
+         return reader.lineOffset();
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Check if a line can begin a chunk from its first character
+    * @param first first character of the line
+    * @return true if data lines cannot follow the line, false otherwise
+    */
+   private static boolean isBoundary(int first) {
+      return first == Symbol.FILE.charAt(0) || first == Symbol.DIR.charAt(0) || first == Symbol.IGNORE.charAt(0)
+              || first == Symbol.BLOB.charAt(0);
+   }
+
+   /**
+    * Parse and validate every entry read by a reader, stopping at the first invalid entry
+    * @param fileSystem file system being loaded
+    * @param reader reader positioned at the start of an entry
+    * @return the parsed chunk
+    */
+   private static Chunk parse(FileSystem fileSystem, NotesReader reader) throws IOException {
+      Chunk chunk = new Chunk();
+      // validation is timed for every entry, so only when the phases are timed in detail
+      boolean timed = Stats.isDetailed();
+      String currLine;
+      while (reader.hasNextLine()) {
+         chunk.lines++;
+         // skip over blank and ignored lines without reading them into a string
+         if (reader.peekIsBlank() || reader.peekChar() == Symbol.IGNORE.charAt(0)) {
+            reader.skipLine();
+            continue;
+         }
+         long lineOffset = reader.lineOffset();
+         currLine = reader.nextLine();
+
+         // truncate line if it exceeds 255 characters - used for file names and directories
+         if (currLine.length() >= Symbol.MAX_CHARS) {
+            // mark the file system for rewriting - the notes file will truncate the data
+            chunk.reWrite = true;
+            // preserve the "/" or ".xxx" extension at the end of a file after truncating
+            int lastDotIndex = currLine.lastIndexOf(".");
+            if (currLine.startsWith(Symbol.DIR)) {
+               currLine = currLine.substring(0, Symbol.MAX_CHARS - 1) + "/";
+            } else {
+               String extension = lastDotIndex == -1 ? "" : currLine.substring(lastDotIndex);
+               currLine = currLine.substring(0, Symbol.MAX_CHARS - extension.length()) + extension;
+            }
+         }
+
+         long validateStart = timed ? System.nanoTime() : 0;
+         chunk.error = checkName(currLine);
+         if (timed) {
+            chunk.validateNanos += System.nanoTime() - validateStart;
+         }
+         if (chunk.error != null) {
+            return chunk;
+         }
+
+         // read a single file, or a blob holding the data of files with the same content
+         if (currLine.startsWith(Symbol.FILE) || currLine.startsWith(Symbol.BLOB)) {
+            boolean isBlob = currLine.startsWith(Symbol.BLOB);
+            // title of the file (or hash of the blob)
+            String currFileName = currLine.substring(1);
+            // terminate if file name ends with "/"
+            if (currFileName.endsWith("/")) {
+               chunk.error = "The file " + currFileName + " is not correctly formatted (mustn't end with a \"/\").";
+               return chunk;
+            } else if (isBlob && !Blob.isValidLine(currLine)) {
+               chunk.error = "The blob " + currFileName + " is not correctly formatted (must be a SHA-256 hash).";
+               return chunk;
+            }
+
+            boolean isEncoded = reader.peekEquals(Symbol.ENCODED_SHEBANG) || reader.peekEquals(Symbol.DEFLATED_SHEBANG);
+            long dataOffset = reader.lineOffset();
+            // a file whose data is stored in a blob holds a single line referring to it
+            String blobHash = null;
+            if (!isBlob && reader.peekChar() == Symbol.DATA.charAt(0) && reader.peekLength() == Blob.REFERENCE_LENGTH) {
+               blobHash = Blob.referencedHash(reader.peek());
+            }
+            int dataLines = 0;
+            long dataSize = 0;
+            boolean truncated = false;
+
+            // iterate through data of current file - only the size is needed, the data is read when required
+            while (reader.peekChar() == Symbol.DATA.charAt(0)) {
+               int lineLength = reader.peekLength();
+               // truncate line if it exceeds 255 characters
+               if (lineLength > Symbol.MAX_CHARS) {
+                  lineLength = Symbol.MAX_CHARS;
+                  truncated = true;
+                  chunk.reWrite = true;
+               }
+               dataSize += lineLength - 1;
+               dataLines++;
+               reader.skipLine();
+            }
+            chunk.lines += dataLines;
+            long dataLength = reader.lineOffset() - dataOffset;
+            InternalFile currFile = isBlob
+                    ? new Blob(currFileName, isEncoded, lineOffset, dataOffset, dataLength, dataSize)
+                    : new InternalFile(currFileName, isEncoded, lineOffset, dataOffset, dataLength, dataSize);
+            if (truncated) {
+               // keep the truncated data in memory so that it is written out when the file system is rewritten
+               currFile.data = readTruncatedData(fileSystem, dataOffset, reader.lineOffset());
+            }
+            if (isBlob) {
+               chunk.blobs.add((Blob) currFile);
+            } else {
+               if (blobHash != null && dataLines == 1) {
+                  // linked to the blob once every blob has been read
+                  currFile.blob = new Blob(blobHash, false);
+               }
+               chunk.files.add(currFile);
+            }
+         // read a directory
+         } else if (currLine.startsWith(Symbol.DIR)) {
+            // the directory is not formatted correctly
+            if (!currLine.endsWith("/")) {
+               chunk.error = "The directory " + currLine.substring(1) + " is not correctly formatted (must end with a \"/\").";
+               return chunk;
+            }
+            InternalFile currDir = new InternalFile(currLine.substring(1));
+            currDir.offset = lineOffset;
+            chunk.files.add(currDir);
+         // handle extraneous values
+         } else {
+            chunk.error = "An unknown file type was found by the compiler (" + currLine.charAt(0) + ").";
+            return chunk;
+         }
+      }
+      return chunk;
+   }
+
+   /**
+    * Check the name line of an entry against the naming rules of the notes file format
+    * @param line the "@" or "=" line of the entry (within the 255 character limit)
+    * @return message describing why the name is invalid, null if it is valid
+    */
+   public static String checkName(String line) {
+      // multiple dots in a row in file
+      if (line.contains("..")) {
+         return "The file " + line + " is not correctly formatted (mustn't be named as \"..\").";
+      // files named "."
+      } else if (line.contains("/.") || line.contains("/./") || line.endsWith(".")) {
+         return "The file " + line + " is not correctly formatted (mustn't be named as \".\").";
+      // empty directory names
+      } else if (line.contains("//")) {
+         return "A directory with no name was detected.";
+      // non-valid characters
+      } else if (!(line.substring(1)).matches(Symbol.FILENAME_REGEX)) {
+         return "An invalid filename was detected.";
+      }
+      return null;
+   }
+
+   /**
+    * Read data lines from the notes file, truncating any lines that exceed 255 characters
+    * @param fileSystem file system being loaded
+    * @param start byte offset of the first data line
+    * @param end byte offset just after the last data line
+    * @return data lines without the data prefix, each ending with "\n"
+    */
+   private static byte[] readTruncatedData(FileSystem fileSystem, long start, long end) throws IOException {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      NotesReader reader = fileSystem.compressed ? new NotesReader(fileSystem.notes.openRegion(start), start, end)
+              : new NotesReader(fileSystem.fs, start, end);
+      while (reader.hasNextLine()) {
+         String line = reader.nextLine();
+         if (line.length() > Symbol.MAX_CHARS) {
+            line = line.substring(0, Symbol.MAX_CHARS);
+         }
+         data.write((line.substring(1) + "\n").getBytes(StandardCharsets.UTF_8));
+      }
+      reader.close();
+      return data.toByteArray();
+   }
+
+   /**
+    * Get the configured size of each chunk of the notes file
+    * @return number of bytes nominally parsed by each task
+    */
+   private static int chunkSize() {
+      int chunkSize = Integer.getInteger(CHUNK_SIZE_PROPERTY, DEFAULT_CHUNK_SIZE);
+      if (chunkSize < MIN_CHUNK_SIZE) {
+         Util.exitProgram("The load chunk size (" + CHUNK_SIZE_PROPERTY + ") must be at least " + MIN_CHUNK_SIZE + " bytes.");
+      }
+      return chunkSize;
+   }
+
+   /**
+    * Wait for a chunk to be parsed
+    * @param chunk the chunk being parsed
+    * @return the parsed chunk
+    */
+   private static Chunk await(Future<Chunk> chunk) throws IOException {
+      try {
+         return chunk.get();
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted whilst waiting for a chunk to be parsed.", e);
+      } catch (ExecutionException e) {
+         if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+         }
+         throw new IOException(e.getCause());
+      }
+   }
+
+   /**
+    * Entries parsed from a chunk of the notes file, in the order they appear
+    */
+   private static class Chunk {
+      private final ArrayList<InternalFile> files = new ArrayList<>();
+      private final ArrayList<Blob> blobs = new ArrayList<>();
+      // true if any line of the chunk had to be truncated
+      private boolean reWrite = false;
+      // message of the error that stopped the chunk being parsed (null if it was parsed whole)
+      private String error = null;
+      // number of lines and bytes read, and time spent validating names (only when timed in detail)
+      private long lines;
+      private long bytes;
+      private long validateNanos;
+   }
+}
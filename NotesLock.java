@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Cross-process lock on a file system, so that processes working on the same notes file do not corrupt it.
+ * Commands that only read share the lock, whilst commands that change the file system hold it exclusively.
+ * The lock is taken on a sidecar lock file (FS.notes.lock) rather than the notes file itself, as the notes
+ * file is replaced whenever it is rewritten, and closing any channel of a file releases every lock the
+ * process holds on it on some systems (including Linux). The lock file is removed by its last holder; a
+ * process that was waiting on a removed lock file notices that it has gone and tries again.
+ */
+public class NotesLock {
+   private static final String EXTENSION = ".lock";
+
+   private final Path path;
+   private final FileChannel channel;
+   private FileLock lock;
+   // identity of the locked file, used to check it is still the lock file (null if it cannot be told)
+   private final Object key;
+
+   private NotesLock(Path path, FileChannel channel, FileLock lock, Object key) {
+      this.path = path;
+      this.channel = channel;
+      this.lock = lock;
+      this.key = key;
+   }
+
+   /**
+    * Get the sidecar lock file belonging to a notes file
+    * @param notesFile the notes file of the file system
+    * @return the lock file (which only exists whilst the file system is locked)
+    */
+   public static File lockFileFor(File notesFile) {
+      return new File(notesFile.getPath() + EXTENSION);
+   }
+
+   /**
+    * Lock a file system, waiting for any other process holding a conflicting lock to release it
+    * @param notesFile the notes file of the file system
+    * @param shared true to share the lock with other readers, false to hold it exclusively
+    * @return the held lock
+    */
+   public static NotesLock acquire(File notesFile, boolean shared) throws IOException {
+      Path path = lockFileFor(notesFile).toPath();
+      // without file keys a removed lock file cannot be noticed, so the lock file is left in place
+      boolean removable = fileKey(notesFile.toPath()) != null;
+      while (true) {
+         Object before = removable ? fileKey(path) : null;
+         FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                 StandardOpenOption.WRITE);
+         if (!removable) {
+            return new NotesLock(path, channel, channel.lock(0, Long.MAX_VALUE, shared), null);
+         }
+         // the channel is only known to be of the lock file if the file was there both before and after opening it
+         if (before != null && before.equals(fileKey(path))) {
+            FileLock lock = channel.lock(0, Long.MAX_VALUE, shared);
+            // the previous holder may have removed the lock file whilst this process waited
+            if (before.equals(fileKey(path))) {
+               return new NotesLock(path, channel, lock, before);
+            }
+         }
+         channel.close();
+      }
+   }
+
+   /**
+    * Check if the lock is shared with other readers
+    * @return true if the lock is shared, false if it is held exclusively
+    */
+   public boolean isShared() {
+      return lock.isShared();
+   }
+
+   /**
+    * Release the lock, removing the lock file if no other process holds it
+    */
+   public void release() throws IOException {
+      if (key != null) {
+         if (lock.isShared()) {
+            // other readers may still hold the lock - the file is only removed if it can be held exclusively
+            lock.release();
+            lock = channel.tryLock(0, Long.MAX_VALUE, false);
+         }
+         if (lock != null && key.equals(fileKey(path))) {
+            Files.delete(path);
+         }
+      }
+      // closing the channel releases the lock
+      channel.close();
+   }
+
+   /**
+    * Get the identity of a file (its device and inode on unix)
+    * @param path path of the file
+    * @return the file key, null if the file does not exist or file keys are not supported
+    */
+   private static Object fileKey(Path path) throws IOException {
+      try {
+         return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+      } catch (NoSuchFileException e) {
+         return null;
+      }
+   }
+}
@@ -0,0 +1,308 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * A line reader over a memory-mapped .notes file. Lines are split directly on the mapped bytes and
+ * can be classified by their first character without creating a String for them.
+ * Large files are mapped through a sliding window. Streams that cannot be mapped (such as a
+ * decompressed .notes.gz file) are read forwards through a buffer holding the current line.
+ */
+public class NotesReader {
+   // size of each mapped region of the file
+   private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+   // initial size of the buffer used when reading from a stream
+   private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+   private final FileChannel channel;
+   // offset reading stops at (the file size unless reading a range, discovered at the end of a stream)
+   private long limit;
+   private MappedByteBuffer window;
+   private long windowStart;
+   private long windowEnd;
+
+   // stream being read instead of a mapped file (null when reading a file)
+   private final InputStream stream;
+   // bytes of the stream from bufferStart onwards that have been read but not yet discarded
+   private byte[] streamBuffer;
+   private long bufferStart;
+   private int bufferLength;
+
+   // bounds of the next (peeked) line - lineEnd excludes the line terminator
+   private long lineStart;
+   private long lineEnd;
+   // start of the line following the peeked line
+   private long nextStart;
+   private boolean hasLine;
+
+   public NotesReader(File source) throws IOException {
+      channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+      stream = null;
+      limit = channel.size();
+      advance(0);
+   }
+
+   /**
+    * Read only the lines within a byte range of a file
+    * @param source file to read
+    * @param start offset of the first line to read
+    * @param end offset the lines end at (exclusive)
+    */
+   public NotesReader(File source, long start, long end) throws IOException {
+      channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+      stream = null;
+      limit = Math.min(end, channel.size());
+      advance(start);
+   }
+
+   /**
+    * Read the lines of a stream in a single forward pass
+    * @param source stream to read - its first byte is treated as being at offset start
+    * @param start offset of the first byte of the stream
+    * @param end offset the lines end at (exclusive), or Long.MAX_VALUE to read until the end of the stream
+    */
+   public NotesReader(InputStream source, long start, long end) throws IOException {
+      channel = null;
+      stream = source;
+      streamBuffer = new byte[STREAM_BUFFER_SIZE];
+      bufferStart = start;
+      limit = end;
+      advance(start);
+   }
+
+   public boolean hasNextLine() {
+      return hasLine;
+   }
+
+   /**
+    * Read the next line as a String and move on to the following line
+    * @return the next line without its line terminator
+    */
+   public String nextLine() throws IOException {
+      String current = peek();
+      advance(nextStart);
+      return current;
+   }
+
+   /**
+    * Move on to the following line without creating a String for the current one
+    */
+   public void skipLine() throws IOException {
+      advance(nextStart);
+   }
+
+   /**
+    * Get the next line without moving past it
+    * @return the next line without its line terminator, null if there are no more lines
+    */
+   public String peek() throws IOException {
+      if (!hasLine) {
+         return null;
+      }
+      return new String(readBytes(lineStart, (int) (lineEnd - lineStart)), StandardCharsets.UTF_8);
+   }
+
+   /**
+    * Get the first character of the next line
+    * @return the first byte of the next line, -1 if the line is empty or there are no more lines
+    */
+   public int peekChar() throws IOException {
+      if (!hasLine || lineEnd == lineStart) {
+         return -1;
+      }
+      return byteAt(lineStart) & 0xff;
+   }
+
+   /**
+    * Check if the next line is exactly the given text (compared as bytes)
+    * @param text ascii text to compare against
+    * @return true if the next line matches the text, false otherwise
+    */
+   public boolean peekEquals(String text) throws IOException {
+      if (!hasLine || lineEnd - lineStart != text.length()) {
+         return false;
+      }
+      for (int i = 0; i < text.length(); i++) {
+         if (byteAt(lineStart + i) != (byte) text.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Get the length of the next line in characters (as String.length would report it) without decoding it
+    * @return number of UTF-16 characters in the next line
+    */
+   public int peekLength() throws IOException {
+      int length = 0;
+      for (long pos = lineStart; pos < lineEnd; pos++) {
+         int b = byteAt(pos) & 0xff;
+         // continuation bytes do not start a new character, and 4 byte sequences become a surrogate pair
+         if ((b & 0xc0) != 0x80) {
+            length += (b & 0xf8) == 0xf0 ? 2 : 1;
+         }
+      }
+      return length;
+   }
+
+   /**
+    * Check if the next line only contains whitespace (the same characters String.trim removes)
+    * @return true if the next line is blank, false otherwise
+    */
+   public boolean peekIsBlank() throws IOException {
+      for (long pos = lineStart; pos < lineEnd; pos++) {
+         if ((byteAt(pos) & 0xff) > ' ') {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Get the byte offset of the next line within the file
+    * @return offset of the first byte of the next line
+    */
+   public long lineOffset() {
+      return lineStart;
+   }
+
+   /**
+    * Get the byte offset just after the next line's terminator
+    * @return offset of the line following the next line
+    */
+   public long nextLineOffset() {
+      return nextStart;
+   }
+
+   public void close() throws IOException {
+      window = null;
+      if (stream != null) {
+         stream.close();
+      } else {
+         channel.close();
+      }
+   }
+
+   /**
+    * Locate the line beginning at a given offset
+    * @param start offset of the line to locate
+    */
+   private void advance(long start) throws IOException {
+      hasLine = available(start);
+      if (!hasLine) {
+         lineStart = lineEnd = nextStart = limit;
+         return;
+      }
+      lineStart = start;
+      long pos = start;
+      while (available(pos)) {
+         byte b = byteAt(pos);
+         if (b == '\n') {
+            lineEnd = pos;
+            nextStart = pos + 1;
+            return;
+         } else if (b == '\r') {
+            lineEnd = pos;
+            nextStart = (available(pos + 1) && byteAt(pos + 1) == '\n') ? pos + 2 : pos + 1;
+            return;
+         }
+         pos++;
+      }
+      // final line has no terminator
+      lineEnd = limit;
+      nextStart = limit;
+   }
+
+   /**
+    * Check if there is a byte at a given offset, reading further into the stream if required
+    * @param pos offset of the byte within the file
+    * @return true if the offset is before the end of the file, false otherwise
+    */
+   private boolean available(long pos) throws IOException {
+      if (pos >= limit) {
+         return false;
+      } else if (stream == null || pos < bufferStart + bufferLength) {
+         return true;
+      }
+      // bytes before the current line are no longer needed
+      int keep = (int) (bufferStart + bufferLength - Math.max(lineStart, bufferStart));
+      if (keep < bufferLength) {
+         System.arraycopy(streamBuffer, bufferLength - keep, streamBuffer, 0, keep);
+         bufferStart += bufferLength - keep;
+         bufferLength = keep;
+      }
+      while (pos >= bufferStart + bufferLength) {
+         // a line longer than the buffer needs a bigger buffer
+         if (bufferLength == streamBuffer.length) {
+            streamBuffer = Arrays.copyOf(streamBuffer, streamBuffer.length * 2);
+         }
+         int read = stream.read(streamBuffer, bufferLength, streamBuffer.length - bufferLength);
+         if (read == -1) {
+            limit = bufferStart + bufferLength;
+            return false;
+         }
+         bufferLength += read;
+      }
+      return pos < limit;
+   }
+
+   /**
+    * Get a single byte of the file, mapping a new window if required
+    * @param pos offset of the byte within the file
+    * @return the byte at the given offset
+    */
+   private byte byteAt(long pos) throws IOException {
+      if (stream != null) {
+         return streamBuffer[(int) (pos - bufferStart)];
+      }
+      if (pos < windowStart || pos >= windowEnd || window == null) {
+         map(pos);
+      }
+      return window.get((int) (pos - windowStart));
+   }
+
+   /**
+    * Copy a range of the file into a new array
+    * @param start offset of the first byte
+    * @param length number of bytes to copy
+    * @return array holding the bytes of the range
+    */
+   private byte[] readBytes(long start, int length) throws IOException {
+      if (stream != null) {
+         int from = (int) (start - bufferStart);
+         return Arrays.copyOfRange(streamBuffer, from, from + length);
+      }
+      byte[] bytes = new byte[length];
+      if (length == 0) {
+         return bytes;
+      }
+      if (start < windowStart || start + length > windowEnd || window == null) {
+         map(start);
+      }
+      if (start + length <= windowEnd) {
+         window.get((int) (start - windowStart), bytes);
+      } else {
+         // range is longer than a single window
+         for (int i = 0; i < length; i++) {
+            bytes[i] = byteAt(start + i);
+         }
+      }
+      return bytes;
+   }
+
+   /**
+    * Map the window of the file beginning at a given offset
+    * @param pos offset to start the window at
+    */
+   private void map(long pos) throws IOException {
+      windowStart = pos;
+      windowEnd = Math.min(limit, pos + WINDOW_SIZE);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+   }
+}
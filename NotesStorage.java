@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Format a file system is stored in, through which its model is loaded and every change made to the model
+ * is written: NOTES V1.0 text (plain or gzip compressed) through NotesV1, or the NOTES V2 block container
+ * through NotesV2. Entries are added to the model before they are written, and removed files are recorded
+ * with FileSystem.removeLines; nothing is durable until the changes are committed.
+ */
+public interface NotesStorage {
+   /**
+    * Load every entry of the notes file into the file system
+    * @param writeImpliedDirs true to write directories that are only implied by the files inside them,
+    *                         false to only create them in memory
+    * @param writable true if the notes file may be written to whilst loading
+    * @return true once loaded, false if the notes file has to be written to but is not writable
+    */
+   boolean load(boolean writeImpliedDirs, boolean writable) throws IOException;
+
+   /**
+    * Get the format of the notes file
+    * @return the header tag of the format (e.g. "NOTES V1.0")
+    */
+   String format();
+
+   /**
+    * Write an entry that has just been added to the model - the caller holds the file system's append lock
+    * @param file the new file or directory
+    */
+   void write(InternalFile file);
+
+   /**
+    * Open a stream over the stored data of a file that is neither held in memory nor a directory
+    * @param file the file
+    * @return stream of the data, as given by InternalFile.openData
+    */
+   InputStream openData(InternalFile file) throws IOException;
+
+   /**
+    * Commit every change made since the last commit, including the pending removals of the file system
+    * @param writable true if the notes file is held exclusively, so that work which is not required (such
+    *                 as compaction) may be done as well
+    */
+   void commit(boolean writable) throws IOException;
+
+   /**
+    * Write every entry again in the order of the file system's allFiles, leaving out everything removed -
+    * the caller holds the whole file system exclusively
+    */
+   void rewrite();
+
+   /**
+    * Write a sidecar index of the notes file, so that later commands can open it without parsing it - the
+    * caller holds the whole file system exclusively
+    */
+   void index() throws IOException;
+
+   /**
+    * Let go of the notes file once every change has been committed
+    */
+   void close() throws IOException;
+
+   /**
+    * Let go of the notes file without committing anything more
+    */
+   void discard() throws IOException;
+}
@@ -0,0 +1,272 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+/**
+ * Storage of a NOTES V1.0 notes file, plain or compressed with gzip. Entries are appended as lines through
+ * the file system's writer, and removed entries have their lines overwritten with "#" through the journal
+ * (or the archive of a compressed file system). The state shared with the loader and the writers of lines
+ * (out, appendOffset, journal, notes) is held by the FileSystem.
+ */
+public class NotesV1 implements NotesStorage {
+   private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+   private final FileSystem fileSystem;
+   private NotesReader sc = null;
+   // true if the file system has a sidecar index that should be kept up to date
+   private boolean indexed;
+
+   /**
+    * Create the storage of a NOTES V1.0 file system - nothing is read until it is loaded
+    * @param fileSystem the file system
+    */
+   public NotesV1(FileSystem fileSystem) {
+      this.fileSystem = fileSystem;
+   }
+
+   @Override
+   public boolean load(boolean writeImpliedDirs, boolean writable) throws IOException {
+      if (fileSystem.compressed) {
+         // parse the archive as it is decompressed - nothing is written unless the file system changes
+         fileSystem.notes = new CompressedNotes(fileSystem.fs);
+         sc = fileSystem.notes.open();
+         fileSystem.out = fileSystem.notes.openWriter();
+         indexed = false;
+      } else {
+         fileSystem.journal = new Journal(fileSystem.fs);
+         // a command stopped part way through a change - bring the notes file back to its last commit
+         if (Journal.needsRecovery(fileSystem.fs)) {
+            if (!writable) {
+               return false;
+            }
+            fileSystem.journal.recover();
+         }
+         fileSystem.openAppendWriter();
+         fileSystem.appendOffset = fileSystem.fs.length();
+         indexed = NotesIndex.indexFileFor(fileSystem.fs).exists();
+      }
+
+      // open through the sidecar index if it is up to date - the notes file does not need to be parsed
+      ArrayList<InternalFile> indexedFiles = indexed ? NotesIndex.read(fileSystem.fs) : null;
+      if (indexedFiles != null) {
+         for (InternalFile file : indexedFiles) {
+            fileSystem.addFile(file);
+         }
+         fileSystem.linkBlobs();
+         Compactor.measure(fileSystem, fileSystem.appendOffset);
+         return true;
+      }
+
+      // set up memory-mapped reader for given file system (compressed file systems are already being read)
+      if (sc == null) {
+         sc = new NotesReader(fileSystem.fs);
+      }
+
+      // ensure first line is the correct format (otherwise terminate)
+      if (!sc.hasNextLine()) {
+         Util.exitProgram("The specified file system is empty.");
+      } else if (!sc.nextLine().equals(Symbol.HEADER_TAG)) {
+         Util.exitProgram("File system format is incorrect. It should begin with \"NOTES V1.0\".");
+      }
+
+      // prepare file system for being written/appended to
+      boolean reWrite = loadEntries();
+      fileSystem.linkBlobs();
+      if (reWrite) {
+         // rewrite notes file - a required change was detected
+         if (!writable) {
+            return false;
+         }
+         Util.rewriteNotesFile(fileSystem);
+      }
+
+      // create any directories that do not exist
+      Stats.Timer timer = Stats.start(Stats.Phase.DIRS);
+      int parsedFiles = fileSystem.allFiles.size();
+      for (int i = 0; i < fileSystem.allFiles.size(); i++) {
+         Util.recursiveCheckDirs(fileSystem, fileSystem.allFiles.get(i).name(), 0, writeImpliedDirs && writable);
+      }
+      timer.stop();
+      if (writeImpliedDirs && !writable && fileSystem.allFiles.size() > parsedFiles) {
+         return false;
+      }
+      if (!fileSystem.compressed) {
+         Compactor.measure(fileSystem, fileSystem.appendOffset);
+      }
+      return true;
+   }
+
+   /**
+    * Iterate through the file system notes file and initialise all files and directories
+    * @return true if the notes file has to be rewritten (as lines had to be truncated), false otherwise
+    */
+   private boolean loadEntries() throws IOException {
+      if (!fileSystem.compressed) {
+         // the notes file is parsed in parallel chunks
+         return NotesLoader.load(fileSystem, sc.lineOffset());
+      }
+      // a compressed file system can only be parsed in a single pass as it is decompressed
+      boolean reWrite = NotesLoader.load(fileSystem, sc);
+      // lines are appended after everything held in the archive
+      fileSystem.appendOffset = sc.lineOffset();
+      fileSystem.notes.setBaseLength(fileSystem.appendOffset);
+      return reWrite;
+   }
+
+   @Override
+   public String format() {
+      return Symbol.HEADER_TAG;
+   }
+
+   @Override
+   public void write(InternalFile file) {
+      long start = fileSystem.appendOffset;
+      if (file.isDir) {
+         file.offset = fileSystem.appendOffset;
+         Util.writeLineToFile(fileSystem, Symbol.DIR + file.name());
+      } else {
+         file.appendLines(fileSystem);
+      }
+      Stats.count(Stats.Counter.BYTES_WRITTEN, fileSystem.appendOffset - start);
+   }
+
+   @Override
+   public InputStream openData(InternalFile file) throws IOException {
+      // appended data may still be waiting in the writer
+      fileSystem.out.flush();
+      Stats.count(Stats.Counter.BYTES_READ, file.dataLength);
+      if (fileSystem.compressed) {
+         return fileSystem.notes.openData(file.dataOffset, file.dataLength);
+      }
+      return new DataRegionStream(fileSystem.dataChannel(), file.dataOffset, file.dataLength);
+   }
+
+   /**
+    * Commit pending removals and lines waiting in the writer, then bring the index or archive up to date
+    */
+   @Override
+   public void commit(boolean writable) throws IOException {
+      // the file system has been parsed - the reader is no longer needed
+      if (sc != null) {
+         sc.close();
+         sc = null;
+      }
+      Util.tombstoneFiles(fileSystem, fileSystem.takePendingRemovals());
+      // reclaim the space of removed lines once enough of the notes file is dead - readers sharing the
+      // lock leave it to a writer, as they do the index
+      if (writable) {
+         Compactor.compactIfNeeded(fileSystem);
+      }
+      // keep an existing sidecar index up to date with any changes made to the notes file
+      if (indexed && writable && !NotesIndex.isFresh(fileSystem.fs)) {
+         NotesIndex.write(fileSystem.fs, fileSystem.allFiles);
+      }
+      // write any changes back into the archive
+      if (fileSystem.compressed) {
+         fileSystem.notes.commit();
+      }
+   }
+
+   @Override
+   public void rewrite() {
+      Util.rewriteNotesFile(fileSystem);
+   }
+
+   @Override
+   public void index() throws IOException {
+      if (fileSystem.compressed) {
+         Util.exitProgram("Compressed file systems cannot be indexed.");
+      }
+      // any directories created whilst loading must be written before the notes file is measured
+      fileSystem.out.flush();
+      NotesIndex.write(fileSystem.fs, fileSystem.allFiles);
+   }
+
+   @Override
+   public void close() throws IOException {
+      fileSystem.closeDataChannel();
+      fileSystem.out.close();
+      if (fileSystem.journal != null) {
+         fileSystem.journal.close();
+      }
+   }
+
+   @Override
+   public void discard() throws IOException {
+      if (sc != null) {
+         sc.close();
+         sc = null;
+      }
+      fileSystem.closeDataChannel();
+      if (fileSystem.notes != null) {
+         fileSystem.notes.discard();
+      } else if (fileSystem.appendStream != null) {
+         // closing the stream underneath the writer drops whatever the writer still holds
+         fileSystem.appendStream.close();
+         fileSystem.appendStream = null;
+      }
+      if (fileSystem.journal != null) {
+         fileSystem.journal.close();
+         fileSystem.journal = null;
+      }
+   }
+
+   /**
+    * Write every entry of a file system to a new NOTES V1.0 notes file, in the order of its allFiles. The
+    * content of each file is read through the storage it is held in now and converted as it would be when
+    * copied in: ascii content as text, anything else base64 encoded (deflated first once the file is large
+    * enough). Unlike copyin, content with lines too long for a data line is base64 encoded rather than
+    * truncated, as the file system being converted may hold lines of any length. Blobs are not shared, as
+    * the content is not hashed.
+    * @param fileSystem the file system - the caller holds the whole file system exclusively
+    * @param target the file to write
+    */
+   public static void create(FileSystem fileSystem, File target) throws IOException {
+      Stats.Timer timer = Stats.start(Stats.Phase.REWRITE);
+      try (OutputStream os = new BufferedOutputStream(new FileOutputStream(target), COPY_BUFFER_SIZE)) {
+         Util.LineSink sink = (line, length) -> {
+            // data lines are all ascii, so each character is written as a single byte
+            for (int i = 0; i < length; i++) {
+               os.write(line[i]);
+            }
+            os.write('\n');
+         };
+         Util.writeLine(os, Symbol.HEADER_TAG);
+         for (InternalFile file : fileSystem.allFiles) {
+            if (file.isDir) {
+               Util.writeLine(os, Symbol.DIR + file.name());
+               continue;
+            }
+            Util.writeLine(os, Symbol.FILE + file.name());
+            // the content is read once to check it and again to convert it
+            boolean text;
+            try (InputStream content = new BufferedInputStream(file.openContent(fileSystem))) {
+               content.mark(Symbol.MARKER.length());
+               byte[] start = content.readNBytes(Symbol.MARKER.length());
+               content.reset();
+               text = !Util.startsWithMarker(start, start.length) && Util.isText(content);
+            }
+            try (InputStream content = file.openContent(fileSystem)) {
+               if (Util.isDeflated(file.size)) {
+                  Util.writeLine(os, Symbol.DEFLATED_SHEBANG);
+                  Util.convertDeflatedData(content, sink);
+               } else if (!text) {
+                  Util.writeLine(os, Symbol.ENCODED_SHEBANG);
+                  Util.convertEncodedData(content, sink);
+               } else {
+                  Util.convertTextData(content, sink);
+               }
+            }
+         }
+      } finally {
+         timer.stop();
+      }
+      Stats.count(Stats.Counter.ENTRIES_REWRITTEN, fileSystem.allFiles.size());
+      Stats.count(Stats.Counter.BYTES_WRITTEN, target.length());
+   }
+}
@@ -0,0 +1,892 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Storage of a NOTES V2 notes file: a container of fixed-size blocks holding the content of each file as
+ * it is, so nothing is base64 encoded and data is not split into lines of limited length.
+ *
+ * Every block is blockSize bytes (4096 by default, set with the Java system property vsfs.v2.blockSize
+ * when a file system is converted). Block 0 is the header: "NOTES V2", the block size and two slots, each
+ * recording a committed state with a CRC32 - its sequence number, the first block and length of the entry
+ * table, and the number of blocks in the file. Every other block starts with the number of the next block
+ * of its chain (-1 for the last) followed by its payload, apart from pack blocks. The content of a file is
+ * held in a chain of full blocks, and whatever is left over (less than a block) is packed into a pack
+ * block alongside the ends of other files, so a small file does not take up a block of its own. The entry
+ * table holds every entry (its name and, for a file, the length and first block of its content and the
+ * position of its packed end) followed by the runs of free blocks.
+ *
+ * Blocks are only written whilst nothing committed refers to them. Content copied in is written to free
+ * blocks (the lowest first, then blocks appended to the file), and a commit writes a new entry table to
+ * free blocks, forces it to disk, then writes the slot not holding the current state, so the file always
+ * holds either the old or the new state. Blocks of removed files and of the replaced table become free
+ * once the commit freeing them is in place, and free blocks at the end of the file are truncated away. Ends
+ * are packed after the last byte written to a pack block (into the block with the least room they fit in),
+ * so the space of a removed end is only reused once every end in its block has been removed, or once the
+ * file system is defragmented.
+ */
+public class NotesV2 implements NotesStorage {
+   public static final String MAGIC = "NOTES V2";
+   public static final String BLOCK_SIZE_PROPERTY = "vsfs.v2.blockSize";
+   private static final int DEFAULT_BLOCK_SIZE = 4096;
+   private static final int MIN_BLOCK_SIZE = 256;
+   private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+   // offsets within the header of the block size and of each slot
+   private static final int BLOCK_SIZE_OFFSET = 12;
+   private static final int[] SLOT_OFFSETS = {64, 128};
+   // sequence, table block, table length and block count, followed by their CRC32
+   private static final int SLOT_LENGTH = 32;
+   // number of bytes at the start of each block giving the next block of its chain
+   private static final int NEXT_LENGTH = 4;
+   private static final int NO_BLOCK = -1;
+   private static final byte DIR_ENTRY = 0;
+   private static final byte FILE_ENTRY = 1;
+   // a file whose content ends in a pack block
+   private static final byte PACKED_FILE_ENTRY = 2;
+   private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+   private final FileSystem fileSystem;
+   private FileChannel channel;
+   private int blockSize;
+   // number of blocks in the file, including the header and free blocks
+   private int blockCount;
+   // sequence number of the committed state
+   private long sequence;
+   // free blocks that can be written to now, and the lowest block that may be free
+   private final BitSet free = new BitSet();
+   private int freeFrom = 0;
+   // blocks freed since the last commit - still part of the committed state until the next commit
+   private final BitSet released = new BitSet();
+   // blocks holding the committed entry table
+   private BitSet tableBlocks = new BitSet();
+   // pack blocks holding the ends of files
+   private Packer packer;
+   // true if an entry has been written since the last commit
+   private boolean changed = false;
+
+   /**
+    * A chain of blocks that has been written
+    */
+   private static class Chain {
+      int first = NO_BLOCK;
+      long length;
+      // bytes left over after the last full block, when they are to be packed (null if there are none)
+      byte[] tail;
+   }
+
+   /**
+    * Source of the number of each block taken for writing
+    */
+   private interface BlockAllocator {
+      /**
+       * Take a block
+       * @return number of the block
+       */
+      int allocate() throws IOException;
+   }
+
+   /**
+    * Destination of each block of a chain as it is written
+    */
+   private interface BlockWriter {
+      /**
+       * Write a block
+       * @param number number of the block
+       * @param block the next block number followed by the payload, from position 0 to the limit
+       */
+      void write(int number, ByteBuffer block) throws IOException;
+   }
+
+   /**
+    * Pack blocks holding the ends of files, and the room left in each
+    */
+   private static class Packer {
+      private final int blockSize;
+      // end of the bytes written to each pack block and the number of ends it holds, by block
+      private final HashMap<Integer, Pack> packs = new HashMap<>();
+      // pack blocks with room left, each as the room (high 32 bits) and the block - the least room first
+      private final TreeSet<Long> room = new TreeSet<>();
+
+      /**
+       * A single pack block
+       */
+      private static class Pack {
+         int end;
+         int ends;
+      }
+
+      Packer(int blockSize) {
+         this.blockSize = blockSize;
+      }
+
+      /**
+       * Take the place of an end of a file, in the pack block with the least room it fits in, or in a new
+       * pack block if none has room for it
+       * @param length length of the end in bytes (less than a block)
+       * @param allocate source of a new pack block
+       * @return byte offset of the end within the notes file
+       */
+      synchronized long place(int length, BlockAllocator allocate) throws IOException {
+         Long fit = room.ceiling((long) length << 32);
+         int block;
+         if (fit == null) {
+            block = allocate.allocate();
+            packs.put(block, new Pack());
+         } else {
+            block = (int) (fit & 0xffffffffL);
+         }
+         long position = (long) block * blockSize + packs.get(block).end;
+         add(block, length);
+         return position;
+      }
+
+      /**
+       * Record an end of a file held in a pack block
+       * @param position byte offset of the end within the notes file
+       * @param length length of the end in bytes
+       */
+      synchronized void load(long position, int length) {
+         int block = (int) (position / blockSize);
+         Pack pack = packs.computeIfAbsent(block, b -> new Pack());
+         int end = (int) (position % blockSize) + length;
+         if (end > pack.end) {
+            setEnd(block, end - pack.end);
+         }
+         pack.ends++;
+      }
+
+      /**
+       * Remove an end of a file from its pack block
+       * @param position byte offset of the end within the notes file
+       * @return the pack block if it no longer holds any ends, otherwise NO_BLOCK
+       */
+      synchronized int remove(long position) {
+         int block = (int) (position / blockSize);
+         Pack pack = packs.get(block);
+         if (--pack.ends > 0) {
+            return NO_BLOCK;
+         }
+         room.remove(key(block, pack));
+         packs.remove(block);
+         return block;
+      }
+
+      /**
+       * Add an end after the last byte written to a pack block
+       * @param block the pack block
+       * @param length length of the end in bytes
+       */
+      private void add(int block, int length) {
+         setEnd(block, length);
+         packs.get(block).ends++;
+      }
+
+      /**
+       * Move the end of the bytes written to a pack block, keeping its room up to date
+       * @param block the pack block
+       * @param length number of bytes the end moves by
+       */
+      private void setEnd(int block, int length) {
+         Pack pack = packs.get(block);
+         room.remove(key(block, pack));
+         pack.end += length;
+         if (pack.end < blockSize) {
+            room.add(key(block, pack));
+         }
+      }
+
+      /**
+       * Get the key of a pack block within the room left in each
+       * @param block the pack block
+       * @param pack the pack block's state
+       * @return the room left followed by the block
+       */
+      private long key(int block, Pack pack) {
+         return (long) (blockSize - pack.end) << 32 | block;
+      }
+   }
+
+   /**
+    * Create the storage of a NOTES V2 file system - nothing is read until it is loaded
+    * @param fileSystem the file system
+    */
+   public NotesV2(FileSystem fileSystem) {
+      this.fileSystem = fileSystem;
+   }
+
+   /**
+    * Check if a notes file is a NOTES V2 container
+    * @param fs the notes file
+    * @return true if it begins with "NOTES V2", false otherwise
+    */
+   public static boolean isV2(File fs) throws IOException {
+      try (InputStream in = new FileInputStream(fs)) {
+         return Arrays.equals(in.readNBytes(MAGIC.length()), MAGIC.getBytes(StandardCharsets.US_ASCII));
+      }
+   }
+
+   @Override
+   public boolean load(boolean writeImpliedDirs, boolean writable) throws IOException {
+      try {
+         channel = FileChannel.open(fileSystem.fs.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      } catch (AccessDeniedException e) {
+         // the file system can still be read
+         channel = FileChannel.open(fileSystem.fs.toPath(), StandardOpenOption.READ);
+      }
+      ByteBuffer header = ByteBuffer.allocate(MIN_BLOCK_SIZE);
+      try {
+         readFully(channel, header, 0);
+      } catch (EOFException e) {
+         corrupt();
+      }
+      blockSize = header.getInt(BLOCK_SIZE_OFFSET);
+      if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+         corrupt();
+      }
+
+      // the newest slot that is intact holds the committed state
+      int slot = -1;
+      for (int i = 0; i < SLOT_OFFSETS.length; i++) {
+         if (isIntact(header, SLOT_OFFSETS[i])
+                 && (slot == -1 || header.getLong(SLOT_OFFSETS[i]) > header.getLong(SLOT_OFFSETS[slot]))) {
+            slot = i;
+         }
+      }
+      if (slot == -1) {
+         corrupt();
+      }
+      sequence = header.getLong(SLOT_OFFSETS[slot]);
+      int tableBlock = header.getInt(SLOT_OFFSETS[slot] + 8);
+      long tableLength = header.getLong(SLOT_OFFSETS[slot] + 12);
+      blockCount = header.getInt(SLOT_OFFSETS[slot] + 20);
+      packer = new Packer(blockSize);
+
+      Stats.Timer timer = Stats.start(Stats.Phase.PARSE);
+      Stats.count(Stats.Counter.BYTES_READ, tableLength);
+      ArrayList<InternalFile> files = new ArrayList<>();
+      try (DataInputStream table = new DataInputStream(new BufferedInputStream(
+              new ChainStream(tableBlock, tableLength, 0, tableBlocks), COPY_BUFFER_SIZE))) {
+         int entries = table.readInt();
+         for (int i = 0; i < entries; i++) {
+            byte type = table.readByte();
+            String name = table.readUTF();
+            InternalFile file;
+            if (type == DIR_ENTRY) {
+               file = new InternalFile(name);
+            } else if (type == FILE_ENTRY || type == PACKED_FILE_ENTRY) {
+               long length = table.readLong();
+               int first = table.readInt();
+               // the packed end of the file's content is found through its offset (0 if there is none)
+               long tail = type == PACKED_FILE_ENTRY ? table.readLong() : 0;
+               if (tail > 0) {
+                  packer.load(tail, tailLength(length, blockSize));
+               }
+               file = new InternalFile(name, false, tail, first, length, length);
+            } else {
+               corrupt();
+               return false;
+            }
+            if (file.isDir) {
+               file.offset = 0;
+            }
+            files.add(file);
+         }
+         int runs = table.readInt();
+         for (int i = 0; i < runs; i++) {
+            int start = table.readInt();
+            free.set(start, start + table.readInt());
+         }
+      } catch (EOFException e) {
+         corrupt();
+      } finally {
+         timer.stop();
+      }
+      Stats.count(Stats.Counter.LINES_READ, files.size());
+      for (InternalFile file : files) {
+         fileSystem.addFile(file);
+      }
+      // every directory is held in the entry table, but one missing is still created in memory
+      timer = Stats.start(Stats.Phase.DIRS);
+      for (InternalFile file : files) {
+         Util.recursiveCheckDirs(fileSystem, file.name(), 0, false);
+      }
+      timer.stop();
+      freeFrom = 0;
+      return true;
+   }
+
+   @Override
+   public String format() {
+      return MAGIC;
+   }
+
+   @Override
+   public void write(InternalFile file) {
+      changed = true;
+      file.offset = 0;
+      if (file.isDir) {
+         return;
+      }
+      // the bytes of the external file are stored as they are - there is nothing to encode or share
+      file.blob = null;
+      file.isEncoded = false;
+      try (InputStream data = file.openSource()) {
+         Chain chain = writeChain(data, blockSize, this::allocate,
+                 (number, block) -> writeFully(channel, block, (long) number * blockSize), true);
+         file.offset = 0;
+         if (chain.tail != null) {
+            file.offset = packer.place(chain.tail.length, this::allocate);
+            writeFully(channel, ByteBuffer.wrap(chain.tail), file.offset);
+         }
+         file.dataOffset = chain.first;
+         file.dataLength = chain.length;
+         file.size = chain.length;
+         Stats.count(Stats.Counter.BYTES_WRITTEN, chain.length);
+      } catch (IOException e) {
+         e.printStackTrace();
+         // the file has only been partly written
+         fileSystem.invalidate();
+         Util.exitProgram("The external file could not be read.");
+      }
+   }
+
+   @Override
+   public InputStream openData(InternalFile file) throws IOException {
+      Stats.count(Stats.Counter.BYTES_READ, file.dataLength);
+      return new ChainStream((int) file.dataOffset, file.dataLength, file.offset, null);
+   }
+
+   /**
+    * Write a new entry table holding every entry of the model and the blocks freed since the last commit,
+    * then switch to it - only once something has changed
+    */
+   @Override
+   public void commit(boolean writable) throws IOException {
+      ArrayList<InternalFile> removed = fileSystem.takePendingRemovals();
+      for (InternalFile file : removed) {
+         if (!file.isDir && file.offset >= 0 && file.dataLength > 0) {
+            releaseChain((int) file.dataOffset, file.dataLength, file.offset);
+         }
+      }
+      if (!changed && removed.isEmpty()) {
+         return;
+      }
+
+      ByteArrayOutputStream entries = new ByteArrayOutputStream();
+      writeEntries(fileSystem.allFiles, new DataOutputStream(entries));
+      // the table is written to blocks that are free now, and lists the blocks that are free once it is
+      // in place - which depends on the blocks it takes up
+      int payload = blockSize - NEXT_LENGTH;
+      int[] blocks = new int[0];
+      BitSet freed;
+      int count;
+      byte[] table;
+      while (true) {
+         freed = (BitSet) free.clone();
+         freed.or(released);
+         freed.or(tableBlocks);
+         count = blockCount;
+         while (count > 1 && freed.get(count - 1)) {
+            count--;
+         }
+         freed.clear(count, Math.max(count, freed.length()));
+         table = withFreeRuns(entries, freed);
+         int needed = (table.length + payload - 1) / payload;
+         if (needed <= blocks.length) {
+            break;
+         }
+         int allocated = blocks.length;
+         blocks = Arrays.copyOf(blocks, needed);
+         for (int i = allocated; i < needed; i++) {
+            blocks[i] = allocate();
+         }
+      }
+      // pad the table to fill every block taken for it, as fewer may be needed than were taken
+      table = Arrays.copyOf(table, Math.max(table.length, (blocks.length - 1) * payload + 1));
+
+      int[] taken = blocks;
+      int[] next = {0};
+      writeChain(new ByteArrayInputStream(table), blockSize, () -> taken[next[0]++],
+              (number, block) -> writeFully(channel, block, (long) number * blockSize), false);
+      channel.force(false);
+      // the new state is in place once its slot is written
+      writeSlot(channel, (int) ((sequence + 1) % SLOT_OFFSETS.length), sequence + 1, blocks[0], table.length, count);
+      channel.force(false);
+      sequence++;
+      Stats.count(Stats.Counter.BYTES_WRITTEN, table.length);
+      if (count < blockCount) {
+         channel.truncate((long) count * blockSize);
+      }
+
+      synchronized (this) {
+         blockCount = count;
+         free.clear();
+         free.or(freed);
+         freeFrom = 0;
+         released.clear();
+         tableBlocks = new BitSet();
+         for (int block : blocks) {
+            tableBlocks.set(block);
+         }
+      }
+      changed = false;
+   }
+
+   @Override
+   public void rewrite() {
+      try {
+         // removed files are not written, so there is nothing left to remove
+         fileSystem.clearPendingRemovals();
+         File tempFile = Util.createTempFile(fileSystem.fs, Symbol.TEMP_EXTENSION);
+         create(fileSystem, tempFile);
+         fileSystem.replaceNotes(tempFile);
+      } catch (IOException e) {
+         System.err.println("There was a problem with opening the file.");
+         e.printStackTrace();
+      }
+   }
+
+   @Override
+   public void index() {
+      Util.exitProgram("NOTES V2 file systems cannot be indexed, as they hold their own entry table.");
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+
+   @Override
+   public void discard() throws IOException {
+      // the committed state does not refer to anything written since - those blocks are still free in it
+      if (channel != null) {
+         channel.close();
+      }
+   }
+
+   /**
+    * Write every entry of a file system to a new NOTES V2 container, in the order of its allFiles, with the
+    * full blocks of each file's content in consecutive blocks and its end packed. The content is read
+    * through the storage it is held in now, decoded (and inflated) from data lines.
+    * @param fileSystem the file system - the caller holds the whole file system exclusively
+    * @param target the file to write
+    */
+   public static void create(FileSystem fileSystem, File target) throws IOException {
+      Stats.Timer timer = Stats.start(Stats.Phase.REWRITE);
+      try {
+         createContainer(fileSystem, target);
+      } finally {
+         timer.stop();
+      }
+      Stats.count(Stats.Counter.ENTRIES_REWRITTEN, fileSystem.allFiles.size());
+      Stats.count(Stats.Counter.BYTES_WRITTEN, target.length());
+   }
+
+   /**
+    * Write every entry of a file system to a new NOTES V2 container
+    * @param fileSystem the file system - the caller holds the whole file system exclusively
+    * @param target the file to write
+    */
+   private static void createContainer(FileSystem fileSystem, File target) throws IOException {
+      int blockSize = Integer.getInteger(BLOCK_SIZE_PROPERTY, DEFAULT_BLOCK_SIZE);
+      if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+         Util.exitProgram("The block size (" + BLOCK_SIZE_PROPERTY + ") must be between " + MIN_BLOCK_SIZE
+                 + " and " + MAX_BLOCK_SIZE + " bytes.");
+      }
+      try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+         OutputStream os = new BufferedOutputStream(Channels.newOutputStream(channel), COPY_BUFFER_SIZE);
+         byte[] padding = new byte[blockSize];
+         // blocks are taken in order, each written in full so the stream stays at the start of the next
+         int[] blockCount = {1};
+         BlockAllocator allocate = () -> blockCount[0]++;
+         BlockWriter writer = (number, block) -> {
+            os.write(block.array(), 0, block.limit());
+            os.write(padding, 0, blockSize - block.limit());
+         };
+         // a pack block is written empty when it is taken, and the ends packed into it are written over it
+         Packer packer = new Packer(blockSize);
+         ByteBuffer empty = ByteBuffer.allocate(0);
+         BlockAllocator allocatePack = () -> {
+            int number = allocate.allocate();
+            writer.write(number, empty);
+            return number;
+         };
+         ByteBuffer header = ByteBuffer.allocate(blockSize);
+         header.put(MAGIC.getBytes(StandardCharsets.US_ASCII)).put((byte) '\n');
+         header.putInt(BLOCK_SIZE_OFFSET, blockSize);
+         os.write(header.array());
+
+         ArrayList<InternalFile> files = fileSystem.allFiles;
+         ByteArrayOutputStream entries = new ByteArrayOutputStream();
+         DataOutputStream table = new DataOutputStream(entries);
+         table.writeInt(files.size());
+         for (InternalFile file : files) {
+            if (file.isDir) {
+               writeEntry(table, file.name(), true, 0, NO_BLOCK, 0);
+               continue;
+            }
+            try (InputStream content = file.openContent(fileSystem)) {
+               Chain chain = writeChain(content, blockSize, allocate, writer, true);
+               long tail = 0;
+               if (chain.tail != null) {
+                  tail = packer.place(chain.tail.length, allocatePack);
+                  os.flush();
+                  writeFully(channel, ByteBuffer.wrap(chain.tail), tail);
+               }
+               writeEntry(table, file.name(), false, chain.length, chain.first, tail);
+            }
+         }
+         // nothing is free
+         table.writeInt(0);
+         Chain tableChain = writeChain(new ByteArrayInputStream(entries.toByteArray()), blockSize, allocate, writer,
+                 false);
+         os.flush();
+         writeSlot(channel, 1, 1, tableChain.first, tableChain.length, blockCount[0]);
+      }
+   }
+
+   /**
+    * Take the lowest free block, or a new block at the end of the file if none is free
+    * @return number of the block
+    */
+   private synchronized int allocate() {
+      int block = free.nextSetBit(freeFrom);
+      if (block == -1) {
+         freeFrom = blockCount + 1;
+         return blockCount++;
+      }
+      free.clear(block);
+      freeFrom = block + 1;
+      return block;
+   }
+
+   /**
+    * Get the length of the end of a file's content that is packed
+    * @param length length of the file's content in bytes
+    * @param blockSize size of each block
+    * @return number of bytes after the last full block
+    */
+   private static int tailLength(long length, int blockSize) {
+      return (int) (length % (blockSize - NEXT_LENGTH));
+   }
+
+   /**
+    * Free the blocks of a removed file once the changes are next committed - its pack block is only freed
+    * once it holds no other ends
+    * @param first first block of the file's content
+    * @param length length of the file's content in bytes
+    * @param tail byte offset of the packed end of the content (0 if there is none)
+    */
+   private void releaseChain(int first, long length, long tail) throws IOException {
+      if (tail > 0) {
+         int pack = packer.remove(tail);
+         if (pack != NO_BLOCK) {
+            released.set(pack);
+         }
+         length -= tailLength(length, blockSize);
+      }
+      ByteBuffer next = ByteBuffer.allocate(NEXT_LENGTH);
+      long blocks = (length + blockSize - NEXT_LENGTH - 1) / (blockSize - NEXT_LENGTH);
+      int block = first;
+      for (long i = 0; i < blocks && block > 0; i++) {
+         released.set(block);
+         next.clear();
+         readFully(channel, next, (long) block * blockSize);
+         block = next.getInt(0);
+      }
+   }
+
+   /**
+    * Write data to a new chain of blocks. The payload of each block is read ahead of writing the block
+    * before it, so that the last block of the chain is known when it is written.
+    * @param data stream of the data to write
+    * @param blockSize size of each block
+    * @param allocate supplies the number of each block as it is needed
+    * @param writer destination of each block
+    * @param packTail true to leave whatever is left after the last full block to be packed
+    * @return the first block of the chain (none if there is no data or it is all packed), the number of
+    *         bytes held and the bytes to pack
+    */
+   private static Chain writeChain(InputStream data, int blockSize, BlockAllocator allocate, BlockWriter writer,
+                                   boolean packTail) throws IOException {
+      Chain chain = new Chain();
+      ByteBuffer block = ByteBuffer.allocate(blockSize);
+      ByteBuffer ahead = ByteBuffer.allocate(blockSize);
+      int payload = blockSize - NEXT_LENGTH;
+      int filled = data.readNBytes(block.array(), NEXT_LENGTH, payload);
+      if (packTail && filled < payload) {
+         return withTail(chain, block, filled);
+      }
+      if (filled == 0) {
+         return chain;
+      }
+      int number = allocate.allocate();
+      chain.first = number;
+      while (true) {
+         chain.length += filled;
+         int aheadFilled = filled == payload ? data.readNBytes(ahead.array(), NEXT_LENGTH, payload) : 0;
+         boolean last = aheadFilled == 0 || (packTail && aheadFilled < payload);
+         int next = last ? NO_BLOCK : allocate.allocate();
+         block.clear();
+         block.putInt(0, next);
+         block.limit(NEXT_LENGTH + filled);
+         writer.write(number, block);
+         if (last) {
+            return withTail(chain, ahead, aheadFilled);
+         }
+         ByteBuffer written = block;
+         block = ahead;
+         ahead = written;
+         filled = aheadFilled;
+         number = next;
+      }
+   }
+
+   /**
+    * Finish a chain with the bytes left to pack
+    * @param chain the chain
+    * @param block block whose payload holds the bytes
+    * @param filled number of bytes held (none if nothing is left)
+    * @return the chain
+    */
+   private static Chain withTail(Chain chain, ByteBuffer block, int filled) {
+      if (filled > 0) {
+         chain.tail = Arrays.copyOfRange(block.array(), NEXT_LENGTH, NEXT_LENGTH + filled);
+         chain.length += filled;
+      }
+      return chain;
+   }
+
+   /**
+    * Write every entry of the model, as the start of an entry table
+    * @param files every internal file of the file system
+    * @param table stream of the table
+    */
+   private static void writeEntries(ArrayList<InternalFile> files, DataOutputStream table) throws IOException {
+      table.writeInt(files.size());
+      for (InternalFile file : files) {
+         writeEntry(table, file.name(), file.isDir, file.dataLength, (int) file.dataOffset, file.offset);
+      }
+      table.flush();
+   }
+
+   /**
+    * Write a single entry of an entry table
+    * @param table stream of the table
+    * @param name full name of the file or directory
+    * @param isDir true for a directory
+    * @param length length of the file's content in bytes
+    * @param first first block of the file's content
+    * @param tail byte offset of the packed end of the file's content (0 if there is none)
+    */
+   private static void writeEntry(DataOutputStream table, String name, boolean isDir, long length, int first,
+                                  long tail) throws IOException {
+      boolean packed = !isDir && tail > 0;
+      table.writeByte(isDir ? DIR_ENTRY : packed ? PACKED_FILE_ENTRY : FILE_ENTRY);
+      table.writeUTF(name);
+      if (!isDir) {
+         table.writeLong(length);
+         table.writeInt(length == 0 ? NO_BLOCK : first);
+      }
+      if (packed) {
+         table.writeLong(tail);
+      }
+   }
+
+   /**
+    * Finish an entry table with the runs of free blocks
+    * @param entries every entry of the table
+    * @param freed blocks free once the table is in place
+    * @return the whole table
+    */
+   private static byte[] withFreeRuns(ByteArrayOutputStream entries, BitSet freed) throws IOException {
+      ByteArrayOutputStream table = new ByteArrayOutputStream(entries.size() + 64);
+      entries.writeTo(table);
+      DataOutputStream runs = new DataOutputStream(table);
+      ArrayList<int[]> found = new ArrayList<>();
+      for (int start = freed.nextSetBit(0); start >= 0; start = freed.nextSetBit(start)) {
+         int end = freed.nextClearBit(start);
+         found.add(new int[] {start, end - start});
+         start = end;
+      }
+      runs.writeInt(found.size());
+      for (int[] run : found) {
+         runs.writeInt(run[0]);
+         runs.writeInt(run[1]);
+      }
+      runs.flush();
+      return table.toByteArray();
+   }
+
+   /**
+    * Write a slot of the header recording a committed state
+    * @param channel channel of the notes file
+    * @param slot index of the slot
+    * @param sequence sequence number of the state
+    * @param tableBlock first block of the entry table
+    * @param tableLength length of the entry table in bytes
+    * @param blockCount number of blocks in the file
+    */
+   private static void writeSlot(FileChannel channel, int slot, long sequence, int tableBlock, long tableLength,
+                                 int blockCount) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(SLOT_LENGTH);
+      buffer.putLong(sequence).putInt(tableBlock).putLong(tableLength).putInt(blockCount);
+      CRC32 crc = new CRC32();
+      crc.update(buffer.array(), 0, buffer.position());
+      buffer.putLong(crc.getValue());
+      buffer.flip();
+      writeFully(channel, buffer, SLOT_OFFSETS[slot]);
+   }
+
+   /**
+    * Check the CRC32 of a slot of the header
+    * @param header the start of the header
+    * @param offset offset of the slot
+    * @return true if the slot holds a state written in full, false otherwise
+    */
+   private static boolean isIntact(ByteBuffer header, int offset) {
+      CRC32 crc = new CRC32();
+      crc.update(header.array(), offset, SLOT_LENGTH - 8);
+      return header.getLong(offset + SLOT_LENGTH - 8) == crc.getValue();
+   }
+
+   /**
+    * Terminate as the notes file is not a whole NOTES V2 container
+    */
+   private static void corrupt() {
+      Util.exitProgram("File system format is incorrect. The NOTES V2 container is damaged.");
+   }
+
+   /**
+    * Read from a channel until a buffer is full
+    * @param channel channel to read
+    * @param buffer buffer to fill from its position to its limit
+    * @param position offset within the channel to read from
+    */
+   private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         int read = channel.read(buffer, position);
+         if (read == -1) {
+            throw new EOFException("The notes file ended before offset " + position + ".");
+         }
+         position += read;
+      }
+   }
+
+   /**
+    * Write the whole of a buffer to a channel
+    * @param channel channel to write
+    * @param buffer buffer to write from its position to its limit
+    * @param position offset within the channel to write at
+    */
+   private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         position += channel.write(buffer, position);
+      }
+   }
+
+   /**
+    * Stream of the payload of a chain of blocks
+    */
+   private class ChainStream extends InputStream {
+      private final ByteBuffer block = ByteBuffer.allocate(blockSize);
+      private int next;
+      private long remaining;
+      // byte offset and length of the packed end, read once the chain has been
+      private final long tail;
+      private int tailRemaining;
+      // records each block of the chain as it is read (null if not required)
+      private final BitSet visited;
+
+      /**
+       * Open a chain of blocks
+       * @param first first block of the chain
+       * @param length number of bytes held by the chain, including the packed end
+       * @param tail byte offset of the packed end (0 if there is none)
+       * @param visited set to record the blocks of the chain in, or null
+       */
+      ChainStream(int first, long length, long tail, BitSet visited) {
+         this.next = first;
+         this.tail = tail;
+         this.tailRemaining = tail > 0 ? tailLength(length, blockSize) : 0;
+         this.remaining = length - tailRemaining;
+         this.visited = visited;
+         block.limit(0);
+      }
+
+      @Override
+      public int read() throws IOException {
+         if (!block.hasRemaining() && !nextBlock()) {
+            return -1;
+         }
+         return block.get() & 0xff;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         if (len == 0) {
+            return 0;
+         }
+         if (!block.hasRemaining() && !nextBlock()) {
+            return -1;
+         }
+         int read = Math.min(len, block.remaining());
+         block.get(b, off, read);
+         return read;
+      }
+
+      /**
+       * Read the next block of the chain
+       * @return true if a block (or the packed end) was read, false at the end of the chain
+       */
+      private boolean nextBlock() throws IOException {
+         if (remaining == 0 && tailRemaining > 0) {
+            block.clear();
+            block.limit(tailRemaining);
+            readFully(channel, block, tail);
+            block.flip();
+            tailRemaining = 0;
+            return true;
+         }
+         if (remaining == 0) {
+            return false;
+         }
+         if (next <= 0) {
+            throw new EOFException("A chain of blocks ended before the length recorded for it.");
+         }
+         if (visited != null) {
+            visited.set(next);
+         }
+         int payload = (int) Math.min(blockSize - NEXT_LENGTH, remaining);
+         block.clear();
+         block.limit(NEXT_LENGTH + payload);
+         readFully(channel, block, (long) next * blockSize);
+         block.flip();
+         next = block.getInt();
+         remaining -= payload;
+         return true;
+      }
+   }
+}
@@ -0,0 +1,327 @@
+import java.util.ArrayList;
+
+/**
+ * In-memory index of internal files, kept in sync with FileSystem.allFiles.
+ * Names are looked up through a directory trie keyed on path components ("dir1/", "dir2/", "file1"),
+ * which also gives direct access to the children of any directory. Each indexed file refers to its node,
+ * so the name of a file is held once as the components along its path rather than as a full string.
+ * Lookups and changes are synchronized, as commands working on different subtrees share the index;
+ * nodes are only walked directly whilst the whole file system is locked.
+ */
+public class PathIndex {
+   // size of the child table of a node when its first child is added
+   private static final int INITIAL_CHILDREN = 2;
+
+   private final Node root = new Node(null, "");
+   // number of lookups since they were last taken - counted under the index's lock, and added to the
+   // stats in bulk rather than on each lookup
+   private long lookups;
+
+   /**
+    * A single path component within the directory trie
+    */
+   public static class Node {
+      public final Node parent;
+      // path component including the trailing "/" for directories, e.g. "dir1/" or "file1"
+      public final String component;
+      // internal file stored at this path - null if the path is only an implied parent
+      public InternalFile file;
+      // open addressing table of the children, keyed on their components - null until the first child
+      // is added, as most nodes are files without any
+      private Node[] children;
+      private int childCount;
+
+      private Node(Node parent, String component) {
+         this.parent = parent;
+         this.component = component;
+      }
+
+      /**
+       * Get the full path of the node by joining the components from the root
+       * @return full name of the file or directory at this node
+       */
+      public String path() {
+         if (parent == null || parent.parent == null) {
+            return component;
+         }
+         int length = 0;
+         for (Node node = this; node.parent != null; node = node.parent) {
+            length += node.component.length();
+         }
+         char[] path = new char[length];
+         for (Node node = this; node.parent != null; node = node.parent) {
+            length -= node.component.length();
+            node.component.getChars(0, node.component.length(), path, length);
+         }
+         return new String(path);
+      }
+
+      /**
+       * Get the children of the node
+       * @return every child node, in no particular order
+       */
+      public ArrayList<Node> children() {
+         ArrayList<Node> list = new ArrayList<>(childCount);
+         if (children != null) {
+            for (Node child : children) {
+               if (child != null) {
+                  list.add(child);
+               }
+            }
+         }
+         return list;
+      }
+
+      /**
+       * Check if the node has any children
+       * @return true if no child node exists, false otherwise
+       */
+      public boolean isLeaf() {
+         return childCount == 0;
+      }
+
+      /**
+       * Find the child whose component is the given part of a name, without copying it out of the name
+       * @param name full name holding the component
+       * @param start index the component starts at
+       * @param end index just after the component
+       * @return the child node, null if it does not exist
+       */
+      private Node child(String name, int start, int end) {
+         if (children == null) {
+            return null;
+         }
+         int length = end - start;
+         int mask = children.length - 1;
+         for (int i = slot(hash(name, start, end), mask); children[i] != null; i = (i + 1) & mask) {
+            String component = children[i].component;
+            if (component.length() == length && name.regionMatches(start, component, 0, length)) {
+               return children[i];
+            }
+         }
+         return null;
+      }
+
+      /**
+       * Add a child node, growing the table when it is three quarters full
+       * @param child node whose component is not yet a child of this node
+       */
+      private void addChild(Node child) {
+         if (children == null) {
+            children = new Node[INITIAL_CHILDREN];
+         } else if ((childCount + 1) * 4 > children.length * 3) {
+            Node[] old = children;
+            children = new Node[old.length * 2];
+            for (Node node : old) {
+               if (node != null) {
+                  insert(node);
+               }
+            }
+         }
+         insert(child);
+         childCount++;
+      }
+
+      /**
+       * Place a node in the first free slot of the table from the slot of its component
+       * @param child node to place
+       */
+      private void insert(Node child) {
+         int mask = children.length - 1;
+         int i = slot(child.component.hashCode(), mask);
+         while (children[i] != null) {
+            i = (i + 1) & mask;
+         }
+         children[i] = child;
+      }
+
+      /**
+       * Remove a child node, moving back the nodes after it that could no longer be found
+       * @param child a child of this node
+       */
+      private void removeChild(Node child) {
+         int mask = children.length - 1;
+         int i = slot(child.component.hashCode(), mask);
+         while (children[i] != child) {
+            i = (i + 1) & mask;
+         }
+         children[i] = null;
+         childCount--;
+         if (childCount == 0) {
+            children = null;
+            return;
+         }
+         for (int j = (i + 1) & mask; children[j] != null; j = (j + 1) & mask) {
+            int home = slot(children[j].component.hashCode(), mask);
+            // the node at j cannot move back over its own slot
+            boolean reachable = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+            if (!reachable) {
+               children[i] = children[j];
+               children[j] = null;
+               i = j;
+            }
+         }
+      }
+   }
+
+   /**
+    * Add an internal file to the index, replacing any entry with the same name
+    * @param file the internal file to index
+    */
+   public synchronized void add(InternalFile file) {
+      String name = file.name();
+      Node node = root;
+      int start = 0;
+      while (start < name.length()) {
+         int end = nextComponentEnd(name, start);
+         Node child = node.child(name, start, end);
+         if (child == null) {
+            child = new Node(node, name.substring(start, end));
+            node.addChild(child);
+         }
+         node = child;
+         start = end;
+      }
+      node.file = file;
+      file.indexed(node);
+   }
+
+   /**
+    * Remove an internal file from the index (if it is indexed)
+    * @param file the internal file to remove
+    */
+   public synchronized void remove(InternalFile file) {
+      Node node = file.node;
+      if (node == null || node.file != file) {
+         return;
+      }
+      node.file = null;
+      // prune components that no longer lead to any file
+      while (node != root && node.file == null && node.isLeaf()) {
+         node.parent.removeChild(node);
+         node = node.parent;
+      }
+   }
+
+   /**
+    * Check the existence of an internal file by name
+    * @param name full name of the file or directory
+    * @return true if the name is indexed, false otherwise
+    */
+   public synchronized boolean contains(String name) {
+      return get(name) != null;
+   }
+
+   /**
+    * Get an internal file by name
+    * @param name full name of the file or directory
+    * @return the internal file with the given name, null if it does not exist
+    */
+   public synchronized InternalFile get(String name) {
+      Node node = getNode(name);
+      return node == null ? null : node.file;
+   }
+
+   /**
+    * Take the number of lookups made since they were last taken
+    * @return number of lookups
+    */
+   public synchronized long takeLookups() {
+      long taken = lookups;
+      lookups = 0;
+      return taken;
+   }
+
+   /**
+    * Get the trie node for a given path
+    * @param name full name of the file or directory
+    * @return the node for the path (the root node for an empty name), null if the path is not in the trie
+    */
+   public synchronized Node getNode(String name) {
+      lookups++;
+      Node node = root;
+      int start = 0;
+      while (node != null && start < name.length()) {
+         int end = nextComponentEnd(name, start);
+         node = node.child(name, start, end);
+         start = end;
+      }
+      return node;
+   }
+
+   /**
+    * Get the root of the directory trie
+    * @return root node (holds no file)
+    */
+   public Node getRoot() {
+      return root;
+   }
+
+   /**
+    * Collect every internal file stored at or below a given path
+    * @param name full name of the file or directory
+    * @return all internal files within the subtree (empty if the path is not indexed)
+    */
+   public synchronized ArrayList<InternalFile> getSubtree(String name) {
+      ArrayList<InternalFile> subtree = new ArrayList<>();
+      Node node = getNode(name);
+      if (node != null) {
+         collect(node, subtree);
+      }
+      return subtree;
+   }
+
+   /**
+    * Depth-first helper to gather all files below a node
+    * @param node node to start from
+    * @param files array list to add files to
+    */
+   private static void collect(Node node, ArrayList<InternalFile> files) {
+      if (node.file != null) {
+         files.add(node.file);
+      }
+      if (node.children != null) {
+         for (Node child : node.children) {
+            if (child != null) {
+               collect(child, files);
+            }
+         }
+      }
+   }
+
+   /**
+    * Find the end (exclusive) of the path component starting at a given index
+    * @param name full path
+    * @param start index the component starts at
+    * @return index just after the component's "/" or the end of the name
+    */
+   private static int nextComponentEnd(String name, int start) {
+      int slash = name.indexOf('/', start);
+      return slash == -1 ? name.length() : slash + 1;
+   }
+
+   /**
+    * Hash part of a name the same way as String.hashCode hashes it on its own
+    * @param name full name holding the component
+    * @param start index the component starts at
+    * @param end index just after the component
+    * @return hash code of the component
+    */
+   private static int hash(String name, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+         hash = 31 * hash + name.charAt(i);
+      }
+      return hash;
+   }
+
+   /**
+    * Get the slot of the table a hash code starts probing from
+    * @param hash hash code of a component
+    * @param mask size of the table less one (the size is a power of two)
+    * @return index within the table
+    */
+   private static int slot(int hash, int mask) {
+      return (hash ^ (hash >>> 16)) & mask;
+   }
+}
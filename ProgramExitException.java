@@ -0,0 +1,11 @@
+/**
+ * Thrown by Util.exitProgram once an error has been reported, so that the program can be terminated
+ * (or a batch of commands stopped) from the top level rather than wherever the error was found
+ */
+public class ProgramExitException extends RuntimeException {
+   private static final long serialVersionUID = 1L;
+
+   public ProgramExitException(String message) {
+      super(message);
+   }
+}
@@ -0,0 +1,257 @@
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Timers and counters of the work done by commands. They are printed as a breakdown by phase when a
+ * command is run with --stats, and recorded as JFR events whenever a flight recording enables them: a
+ * vsfs.Phase event each time a phase finishes, and a vsfs.Command event holding the counters of each command.
+ * Counters are added to once for each chunk, file or stream rather than for each line or byte (lookups are
+ * counted by the path index and added once the changes are written), and phases are timed once for each
+ * call, so they cost next to nothing when nobody is looking at them. Validation of names is timed for every
+ * entry, so it is only timed with --stats.
+ */
+public class Stats {
+   public static final String STATS_OPTION = "--stats";
+
+   /**
+    * Parts of a command that are timed
+    */
+   public enum Phase {
+      LOAD("load"),
+      PARSE("parse"),
+      VALIDATE("validate names"),
+      DIRS("create implied dirs"),
+      SORT("tree sort"),
+      COPYIN("copyin"),
+      COPYOUT("copyout"),
+      RM("rm"),
+      REWRITE("rewrite"),
+      COMMIT("commit");
+
+      private final String label;
+      private final LongAdder calls = new LongAdder();
+      private final LongAdder nanos = new LongAdder();
+
+      Phase(String label) {
+         this.label = label;
+      }
+   }
+
+   /**
+    * Amounts of work that are counted
+    */
+   public enum Counter {
+      LINES_READ("lines read"),
+      BYTES_READ("bytes read"),
+      BYTES_WRITTEN("bytes written"),
+      LOOKUPS("lookups"),
+      ENTRIES_REWRITTEN("entries rewritten");
+
+      private final String label;
+      private final LongAdder count = new LongAdder();
+
+      Counter(String label) {
+         this.label = label;
+      }
+   }
+
+   // true if phases are timed in detail (with --stats)
+   private static volatile boolean detailed = false;
+
+   /**
+    * A phase being timed
+    */
+   public static class Timer {
+      private final Phase phase;
+      private final long start = System.nanoTime();
+      private final PhaseEvent event = new PhaseEvent();
+
+      private Timer(Phase phase) {
+         this.phase = phase;
+         event.begin();
+      }
+
+      /**
+       * Finish timing the phase
+       */
+      public void stop() {
+         long elapsed = System.nanoTime() - start;
+         phase.calls.increment();
+         phase.nanos.add(elapsed);
+         event.end();
+         if (event.shouldCommit()) {
+            event.phase = phase.label;
+            event.time = elapsed;
+            event.commit();
+         }
+      }
+   }
+
+   /**
+    * JFR event recorded each time a phase finishes
+    */
+   @Name("vsfs.Phase")
+   @Label("VSFS Phase")
+   @Category("VSFS")
+   @Description("A timed part of a VSFS command")
+   static class PhaseEvent extends Event {
+      @Label("Phase")
+      String phase;
+      @Label("Time")
+      @Timespan(Timespan.NANOSECONDS)
+      long time;
+   }
+
+   /**
+    * JFR event recorded once each command finishes, holding the work counted whilst it ran (including the
+    * work of other commands running at the same time on a server)
+    */
+   @Name("vsfs.Command")
+   @Label("VSFS Command")
+   @Category("VSFS")
+   @Description("A VSFS command and the work counted whilst it ran")
+   static class CommandEvent extends Event {
+      @Label("Command")
+      String command;
+      @Label("Lines Read")
+      long linesRead;
+      @Label("Bytes Read")
+      @DataAmount
+      long bytesRead;
+      @Label("Bytes Written")
+      @DataAmount
+      long bytesWritten;
+      @Label("Lookups")
+      long lookups;
+      @Label("Entries Rewritten")
+      long entriesRewritten;
+   }
+
+   /**
+    * A command being counted
+    */
+   public static class Command {
+      private final String name;
+      private final long[] before = snapshot();
+      private final CommandEvent event = new CommandEvent();
+
+      private Command(String name) {
+         this.name = name;
+         event.begin();
+      }
+
+      /**
+       * Finish counting the command
+       */
+      public void finish() {
+         event.end();
+         if (event.shouldCommit()) {
+            long[] after = snapshot();
+            event.command = name;
+            event.linesRead = after[Counter.LINES_READ.ordinal()] - before[Counter.LINES_READ.ordinal()];
+            event.bytesRead = after[Counter.BYTES_READ.ordinal()] - before[Counter.BYTES_READ.ordinal()];
+            event.bytesWritten = after[Counter.BYTES_WRITTEN.ordinal()] - before[Counter.BYTES_WRITTEN.ordinal()];
+            event.lookups = after[Counter.LOOKUPS.ordinal()] - before[Counter.LOOKUPS.ordinal()];
+            event.entriesRewritten = after[Counter.ENTRIES_REWRITTEN.ordinal()] - before[Counter.ENTRIES_REWRITTEN.ordinal()];
+            event.commit();
+         }
+      }
+   }
+
+   /**
+    * Time phases in detail, as they are printed once the command finishes
+    */
+   public static void enableDetail() {
+      detailed = true;
+   }
+
+   /**
+    * Check if phases are timed in detail - parts timed many times over (such as the validation of each
+    * name) are only timed if they are
+    * @return true if running with --stats, false otherwise
+    */
+   public static boolean isDetailed() {
+      return detailed;
+   }
+
+   /**
+    * Start timing a phase
+    * @param phase the phase
+    * @return timer to stop once the phase finishes
+    */
+   public static Timer start(Phase phase) {
+      return new Timer(phase);
+   }
+
+   /**
+    * Add time spent in a phase that was timed in parts (e.g. within a chunk being parsed)
+    * @param phase the phase
+    * @param nanos time spent in nanoseconds
+    */
+   public static void add(Phase phase, long nanos) {
+      phase.calls.increment();
+      phase.nanos.add(nanos);
+      PhaseEvent event = new PhaseEvent();
+      if (event.shouldCommit()) {
+         event.phase = phase.label;
+         event.time = nanos;
+         event.commit();
+      }
+   }
+
+   /**
+    * Count an amount of work
+    * @param counter what was done
+    * @param amount how much of it was done
+    */
+   public static void count(Counter counter, long amount) {
+      counter.count.add(amount);
+   }
+
+   /**
+    * Start counting a command
+    * @param name name of the command
+    * @return command to finish once it has run
+    */
+   public static Command startCommand(String name) {
+      return new Command(name);
+   }
+
+   /**
+    * Get the current value of every counter
+    * @return the counters, indexed by ordinal
+    */
+   private static long[] snapshot() {
+      Counter[] counters = Counter.values();
+      long[] values = new long[counters.length];
+      for (int i = 0; i < counters.length; i++) {
+         values[i] = counters[i].count.sum();
+      }
+      return values;
+   }
+
+   /**
+    * Print the time spent in each phase that ran, followed by every counter
+    * @param out stream to print to
+    */
+   public static void print(PrintStream out) {
+      out.println(String.format(Locale.ROOT, "%-22s %8s %12s", "phase", "calls", "time (ms)"));
+      for (Phase phase : Phase.values()) {
+         long calls = phase.calls.sum();
+         if (calls > 0) {
+            out.println(String.format(Locale.ROOT, "%-22s %8d %12.3f", phase.label, calls, phase.nanos.sum() / 1e6));
+         }
+      }
+      for (Counter counter : Counter.values()) {
+         out.println(String.format(Locale.ROOT, "%-22s %21d", counter.label, counter.count.sum()));
+      }
+   }
+}
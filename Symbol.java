@@ -3,12 +3,17 @@ public class Symbol {
    public final static String DIR = "=";
    public final static String DATA = " ";
    public final static String IGNORE = "#";
+   public final static String BLOB = "&";
    public final static String HEADER_TAG = "NOTES V1.0";
-   public final static String TEMP_FILE_NAME = "tempFile";
+   public final static String TEMP_EXTENSION = ".tmp";
    public final static int MAX_CHARS = 255;
-   // regex expression to check if characters match ascii - matches true if it is an ascii expression
-   public final static String ASCII_CHECK_REGEX = "\\A\\p{ASCII}*\\z";
    // regex expression to check if only characters are included within a string - matches true if it is a valid filename
    public final static String FILENAME_REGEX = "[a-zA-Z0-9\\/.\\-_]+";
    public final static String ENCODED_SHEBANG = " !!b64-encoded";
+   // first data line of a file whose data is deflated before it is base64 encoded
+   public final static String DEFLATED_SHEBANG = " !!b64-deflated";
+   // data line of a file whose data is stored in a blob, followed by the hash of the blob
+   public final static String BLOB_REFERENCE = " !!blob ";
+   // start of the data lines above - text data beginning with it is stored encoded so it cannot be misread
+   public final static String MARKER = "!!";
 }
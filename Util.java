@@ -1,28 +1,60 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 
 /**
  * Class containing utility methods for .notes file systems
  */
 public class Util {
+   public static final String DEFLATE_MIN_BYTES_PROPERTY = "vsfs.deflate.minBytes";
+   public static final String DEFLATE_LEVEL_PROPERTY = "vsfs.deflate.level";
+   private static final int DEFAULT_DEFLATE_LEVEL = 6;
+   private static final int LINE_SEPARATOR_LENGTH = System.lineSeparator().length();
+   private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
    /**
-    * Prints a message to std error and terminate with exit code 1
+    * Prints a message to std error and terminate with exit code 1 - the program exits once the
+    * ProgramExitException thrown reaches Driver.main
     * @param message Error message to print to std error
     */
    public static void exitProgram(String message) {
       System.err.println(message + " Terminating program.");
-      System.exit(1);
+      throw new ProgramExitException(message);
    }
 
    /**
     * Creates sub-directories (if they do not exist) for a given file or directory
+    * @param fileSystem file system to create the sub-directories in
     * @param fullPath the path to create sub-directories for
     * @param prevIndex the previous index of the slash - default 0, used for recursive calculation
     */
-   public static void recursiveCheckDirs(String fullPath, int prevIndex) {
+   public static void recursiveCheckDirs(FileSystem fileSystem, String fullPath, int prevIndex) {
+      recursiveCheckDirs(fileSystem, fullPath, prevIndex, true);
+   }
+
+   /**
+    * Creates sub-directories (if they do not exist) for a given file or directory
+    * @param fileSystem file system to create the sub-directories in
+    * @param fullPath the path to create sub-directories for
+    * @param prevIndex the previous index of the slash - default 0, used for recursive calculation
+    * @param persist true to write created sub-directories to the notes file, false to only add them in memory
+    */
+   public static void recursiveCheckDirs(FileSystem fileSystem, String fullPath, int prevIndex, boolean persist) {
       // find index of the next sub-directory
       int newIndex = fullPath.indexOf("/", prevIndex+1)+1;
       // if there is a next sub-directory (we have not yet reached the end)
@@ -30,40 +62,41 @@ public class Util {
          // string of currently scanned sub-directory
          String subDir = fullPath.substring(0, newIndex);
          // if the currently scanned sub-directory does not exist
-         if (!fileExists(subDir)) {
+         if (!fileExists(fileSystem, subDir)) {
             // add sub-directory to file system
-            FileSystem.allFiles.add(new InternalFile(subDir));
-            writeLineToFile(Symbol.DIR + subDir);
+            InternalFile dir = new InternalFile(subDir);
+            fileSystem.addFile(dir);
+            if (persist) {
+               synchronized (fileSystem.appendLock) {
+                  fileSystem.storage.write(dir);
+               }
+            }
          }
          // check the next sub-directory in the full path
-         recursiveCheckDirs(fullPath, newIndex);
+         recursiveCheckDirs(fileSystem, fullPath, newIndex, persist);
       }
    }
 
    /**
     * Check the existence of a given internal file based on the name of it
+    * @param fileSystem file system to look in
     * @param fileName name of the file to check
     * @return true if the file exists within the internal file system, false otherwise
     */
-   public static boolean fileExists(String fileName) {
-      for (InternalFile file : FileSystem.allFiles) {
-         if (file.name.equals(fileName)) {
-            return true;
-         }
-      }
-      return false;
+   public static boolean fileExists(FileSystem fileSystem, String fileName) {
+      return fileSystem.index.contains(fileName);
    }
 
    /**
     * Get the internal file from a given name
+    * @param fileSystem file system to look in
     * @param fileName name of the file to be retrieved
     * @return the internal file associated with the provided file name if it exists, null if it does not exist
     */
-   public static InternalFile getFile(String fileName) {
-      for (InternalFile file : FileSystem.allFiles) {
-         if (file.name.equals(fileName)) {
-            return file;
-         }
+   public static InternalFile getFile(FileSystem fileSystem, String fileName) {
+      InternalFile file = fileSystem.index.get(fileName);
+      if (file != null) {
+         return file;
       }
       // customise error message if file is not found
       if (fileName.endsWith("/")) {
@@ -76,185 +109,813 @@ public class Util {
    }
 
    /**
-    * Append to the file system notes file with no newline
+    * Append to the file system notes file with no newline - the caller holds the file system's append lock
+    * @param fileSystem file system to append to
     * @param text text to be appended to the file system
     */
-   public static void writeToFile(String text) {
+   public static void writeToFile(FileSystem fileSystem, String text) {
       if (text.length() > Symbol.MAX_CHARS) {
          text = text.substring(0, Symbol.MAX_CHARS) + "\n";
       }
-      FileSystem.out.print(text);
+      fileSystem.out.print(text);
+      fileSystem.appendOffset += byteLength(text);
    }
 
    /**
-    * Append to the file system notes file with a newline
+    * Append to the file system notes file with a newline - the caller holds the file system's append lock
+    * @param fileSystem file system to append to
     * @param text text to be appended to the file system
     */
-   public static void writeLineToFile(String text) {
+   public static void writeLineToFile(FileSystem fileSystem, String text) {
       if (text.length() > Symbol.MAX_CHARS) {
          text = text.substring(0, Symbol.MAX_CHARS) + "\n";
       }
-      FileSystem.out.println(text);
+      fileSystem.out.println(text);
+      fileSystem.appendOffset += byteLength(text) + LINE_SEPARATOR_LENGTH;
    }
 
    /**
-    * Sort all files into tree-like structure
+    * Check if an external file only contains ascii characters, reading it in chunks
+    * @param extFile external file to check
+    * @return true if every byte of the file is ascii, false otherwise
+    */
+   public static boolean isAscii(File extFile) throws IOException {
+      return isAscii(extFile, null);
+   }
+
+   /**
+    * Check if an external file only contains ascii characters, reading it in chunks and passing the whole
+    * file through a digest
+    * @param extFile external file to check
+    * @param digest digest to update with the content of the file (null to stop at the first non-ascii byte)
+    * @return true if every byte of the file is ascii, false otherwise
+    */
+   public static boolean isAscii(File extFile, MessageDigest digest) throws IOException {
+      try (InputStream fis = new FileInputStream(extFile)) {
+         return isAscii(fis, digest);
+      }
+   }
+
+   /**
+    * Check if a stream only contains ascii characters, reading it in chunks and passing all of it through a
+    * digest
+    * @param data stream to check - left open
+    * @param digest digest to update with the whole stream (null to stop at the first non-ascii byte)
+    * @return true if every byte of the stream is ascii, false otherwise
+    */
+   public static boolean isAscii(InputStream data, MessageDigest digest) throws IOException {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      boolean ascii = true;
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+         if (digest != null) {
+            digest.update(buffer, 0, read);
+         }
+         if (ascii && !isAscii(buffer, read)) {
+            ascii = false;
+            if (digest == null) {
+               break;
+            }
+         }
+      }
+      return ascii;
+   }
+
+   /**
+    * Check if a stream can be stored as text data lines as it is: it only contains ascii characters, and
+    * none of its lines are longer than the 254 characters a data line holds
+    * @param data stream to check - left open
+    * @return true if the stream can be stored as text without truncating it, false otherwise
+    */
+   public static boolean isText(InputStream data) throws IOException {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      int lineLength = 0;
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+         for (int i = 0; i < read; i++) {
+            if (buffer[i] < 0) {
+               return false;
+            }
+            if (buffer[i] == '\n') {
+               lineLength = 0;
+            } else if (++lineLength >= Symbol.MAX_CHARS) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Check if the start of an array only contains ascii characters
+    * @param data bytes to check
+    * @param length number of bytes to check
+    * @return true if every byte checked is ascii, false otherwise
+    */
+   public static boolean isAscii(byte[] data, int length) {
+      for (int i = 0; i < length; i++) {
+         if (data[i] < 0) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Check if data begins with the start of a marker line (e.g. " !!blob "), which it cannot be stored as
+    * text with, as its first data line could then be read back as the marker
+    * @param data bytes at the start of the data
+    * @param length number of bytes held
+    * @return true if the data begins with a marker, false otherwise
+    */
+   public static boolean startsWithMarker(byte[] data, int length) {
+      if (length < Symbol.MARKER.length()) {
+         return false;
+      }
+      for (int i = 0; i < Symbol.MARKER.length(); i++) {
+         if (data[i] != Symbol.MARKER.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Check if an external file begins with the start of a marker line
+    * @param extFile external file to check
+    * @return true if the file begins with a marker, false otherwise
+    */
+   public static boolean startsWithMarker(File extFile) throws IOException {
+      try (InputStream fis = new FileInputStream(extFile)) {
+         byte[] start = fis.readNBytes(Symbol.MARKER.length());
+         return startsWithMarker(start, start.length);
+      }
+   }
+
+   /**
+    * Append ascii data to the notes file as data lines, one per line of the data. Lines longer than
+    * 254 characters are truncated to fit the 255 character limit (including the data prefix).
+    * @param fileSystem file system to append to
+    * @param data stream of the data to append
+    * @return number of characters of data written, excluding the data prefix and newline of each line
+    */
+   public static long appendTextData(FileSystem fileSystem, InputStream data) throws IOException {
+      return convertTextData(data, (line, length) -> appendLine(fileSystem, line, length));
+   }
+
+   /**
+    * Append data to the notes file base64 encoded, wrapped into data lines of 254 characters
+    * @param fileSystem file system to append to
+    * @param data stream of the data to append
+    * @return number of characters of encoded data written, excluding the data prefix and newline of each line
+    */
+   public static long appendEncodedData(FileSystem fileSystem, InputStream data) throws IOException {
+      return convertEncodedData(data, (line, length) -> appendLine(fileSystem, line, length));
+   }
+
+   /**
+    * Split ascii data into data lines, one per line of the data. Lines longer than 254 characters are
+    * truncated to fit the 255 character limit (including the data prefix).
+    * @param data stream of the data to convert
+    * @param sink destination of each data line
+    * @return number of characters of data converted, excluding the data prefix of each line
+    */
+   public static long convertTextData(InputStream data, LineSink sink) throws IOException {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      char[] line = new char[Symbol.MAX_CHARS + 1];
+      line[0] = Symbol.DATA.charAt(0);
+      int lineLength = 1;
+      boolean lineStarted = false;
+      long written = 0;
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+         for (int i = 0; i < read; i++) {
+            if (buffer[i] == '\n') {
+               sink.accept(line, lineLength);
+               written += lineLength - 1;
+               lineLength = 1;
+               lineStarted = false;
+            } else {
+               // characters past the limit are dropped
+               if (lineLength < Symbol.MAX_CHARS) {
+                  line[lineLength++] = (char) buffer[i];
+               }
+               lineStarted = true;
+            }
+         }
+      }
+      // finish a final line that has no newline
+      if (lineStarted) {
+         sink.accept(line, lineLength);
+         written += lineLength - 1;
+      }
+      return written;
+   }
+
+   /**
+    * Base64 encode data, wrapped into data lines of 254 characters
+    * @param data stream of the data to convert
+    * @param sink destination of each data line
+    * @return number of characters of encoded data, excluding the data prefix of each line
     */
-   public static void treeSort() {
-      // sort all internal files in reverse alphabetical order
-      FileSystem.allFiles.sort(Comparator.comparing(internalFile -> internalFile.name.toLowerCase()));
+   public static long convertEncodedData(InputStream data, LineSink sink) throws IOException {
+      // 381 bytes encode to exactly 508 characters (two full lines), so every full block fills whole lines
+      byte[] block = new byte[381 * 128];
+      char[] line = new char[Symbol.MAX_CHARS];
+      line[0] = Symbol.DATA.charAt(0);
+      Base64.Encoder encoder = Base64.getEncoder();
+      long written = 0;
+      int read;
+      while ((read = data.readNBytes(block, 0, block.length)) > 0) {
+         byte[] encoded = encoder.encode(read == block.length ? block : Arrays.copyOf(block, read));
+         // wrap data around every 254 characters
+         for (int start = 0; start < encoded.length; start += Symbol.MAX_CHARS - 1) {
+            int length = Math.min(Symbol.MAX_CHARS - 1, encoded.length - start);
+            for (int i = 0; i < length; i++) {
+               line[i + 1] = (char) encoded[start + i];
+            }
+            sink.accept(line, length + 1);
+            written += length;
+         }
+      }
+      return written;
+   }
 
-      // split all internal files into directories and files (each will end up sorted)
-      ArrayList<InternalFile> allDirs = new ArrayList<>();
-      ArrayList<InternalFile> allFiles = new ArrayList<>();
-      for (InternalFile internalFile : FileSystem.allFiles) {
-         if (internalFile.isDir) {
-            allDirs.add(internalFile);
+   /**
+    * Check if the data of an external file is deflated before it is encoded, which it is once the file
+    * holds at least vsfs.deflate.minBytes bytes (never if the property is not set)
+    * @param length length of the external file in bytes
+    * @return true if the data should be deflated, false otherwise
+    */
+   public static boolean isDeflated(long length) {
+      long minBytes = Long.getLong(DEFLATE_MIN_BYTES_PROPERTY, -1);
+      return minBytes >= 0 && length >= minBytes;
+   }
+
+   /**
+    * Append data to the notes file deflated and base64 encoded, wrapped into data lines of 254 characters
+    * @param fileSystem file system to append to
+    * @param data stream of the data to append
+    * @return number of characters of encoded data written, excluding the data prefix and newline of each line
+    */
+   public static long appendDeflatedData(FileSystem fileSystem, InputStream data) throws IOException {
+      return convertDeflatedData(data, (line, length) -> appendLine(fileSystem, line, length));
+   }
+
+   /**
+    * Deflate data, then base64 encode it wrapped into data lines of 254 characters
+    * @param data stream of the data to convert
+    * @param sink destination of each data line
+    * @return number of characters of encoded data, excluding the data prefix of each line
+    */
+   public static long convertDeflatedData(InputStream data, LineSink sink) throws IOException {
+      int level = Integer.getInteger(DEFLATE_LEVEL_PROPERTY, DEFAULT_DEFLATE_LEVEL);
+      if (level < 0 || level > 9) {
+         exitProgram("The deflate level (" + DEFLATE_LEVEL_PROPERTY + ") must be between 0 and 9.");
+      }
+      Deflater deflater = new Deflater(level);
+      try {
+         return convertEncodedData(new DeflaterInputStream(data, deflater, COPY_BUFFER_SIZE), sink);
+      } finally {
+         deflater.end();
+      }
+   }
+
+   /**
+    * Append a single data line (already holding its data prefix) to the notes file followed by a newline
+    * @param fileSystem file system to append to
+    * @param line characters of the line
+    * @param length number of characters of the line to write
+    */
+   private static void appendLine(FileSystem fileSystem, char[] line, int length) {
+      fileSystem.out.write(line, 0, length);
+      fileSystem.out.write('\n');
+      fileSystem.appendOffset += length + 1;
+   }
+
+   /**
+    * Calculate the number of bytes a string takes up once written to the file system (UTF-8)
+    * @param text text to measure
+    * @return number of bytes the text is encoded as
+    */
+   public static int byteLength(String text) {
+      int length = 0;
+      for (int i = 0; i < text.length(); i++) {
+         char c = text.charAt(i);
+         if (c < 0x80) {
+            length += 1;
+         } else if (c < 0x800) {
+            length += 2;
+         } else if (Character.isSurrogate(c)) {
+            // each half of a surrogate pair makes up half of a 4 byte character
+            length += 2;
          } else {
-            allFiles.add(internalFile);
+            length += 3;
          }
       }
+      return length;
+   }
 
-      // new order of internal files
-      ArrayList<InternalFile> newFileStructure = new ArrayList<>();
+   /**
+    * Remove internal files from the notes file by overwriting the first character of their "@"/"=" line
+    * and each of their data lines with the ignore symbol. The removals of a plain notes file are committed
+    * through its journal along with the lines appended since the last commit; those of a compressed file
+    * system are only written when the archive is rewritten.
+    * @param fileSystem file system to remove the files from
+    * @param files internal files to remove
+    */
+   public static void tombstoneFiles(FileSystem fileSystem, Collection<InternalFile> files) throws IOException {
+      // lines being appended must reach the file before any of them can be overwritten
+      fileSystem.out.flush();
+      // visit the files in the order they appear so the notes file is read and written in one forward pass
+      ArrayList<InternalFile> sorted = new ArrayList<>(files);
+      sorted.sort(Comparator.comparingLong(file -> file.offset));
 
-      // recursively sort each directory
-      for (InternalFile dir : allDirs) {
-         recursiveTreeSort(dir, allDirs, allFiles, newFileStructure);
+      ArrayList<long[]> regions = new ArrayList<>(sorted.size());
+      for (InternalFile file : sorted) {
+         // directories implied by their contents may never have been written
+         if (file.offset < 0) {
+            continue;
+         }
+         // a file's lines are contiguous - its "@" line directly precedes its data
+         long end = file.isDir ? file.offset + 1 : file.dataOffset + file.dataLength;
+         // each region is read and written back with its lines tombstoned
+         Stats.count(Stats.Counter.BYTES_WRITTEN, end - file.offset);
+         if (fileSystem.compressed) {
+            fileSystem.notes.tombstone(file.offset, end);
+         } else {
+            regions.add(new long[]{file.offset, end});
+         }
+         fileSystem.addDeadBytes(file.offset, Compactor.entryEnd(file) - file.offset);
       }
+      if (!fileSystem.compressed) {
+         fileSystem.journal.commit(regions);
+      }
+   }
 
-      // add any remaining root files (that have not yet been added)
-      for (InternalFile remainingFile : allFiles) {
-         if (!newFileStructure.contains(remainingFile)) {
-            newFileStructure.add(remainingFile);
+   /**
+    * Overwrite the first character of every line beginning within a region of a notes file with the
+    * ignore symbol
+    * @param channel read-write channel of the notes file
+    * @param start offset of the first line of the region
+    * @param end offset just after the region
+    * @param buffer buffer used to read and write the region
+    */
+   public static void tombstoneRegion(FileChannel channel, long start, long end, ByteBuffer buffer) throws IOException {
+      byte ignore = (byte) Symbol.IGNORE.charAt(0);
+      long position = start;
+      boolean atLineStart = true;
+      boolean afterReturn = false;
+      while (position < end) {
+         buffer.clear();
+         buffer.limit((int) Math.min(buffer.capacity(), end - position));
+         int read = channel.read(buffer, position);
+         if (read <= 0) {
+            break;
+         }
+         byte[] bytes = buffer.array();
+         for (int i = 0; i < read; i++) {
+            if (atLineStart && !(afterReturn && bytes[i] == '\n')) {
+               bytes[i] = ignore;
+               atLineStart = false;
+            } else if (bytes[i] == '\n' || bytes[i] == '\r') {
+               atLineStart = true;
+            }
+            afterReturn = bytes[i] == '\r';
          }
+         buffer.flip();
+         channel.write(buffer, position);
+         position += read;
+      }
+   }
+
+   /**
+    * Sort all files into tree-like structure
+    * @param fileSystem file system whose files are sorted
+    * @return every internal file of the file system in tree order (the file system itself is left unchanged)
+    */
+   public static ArrayList<InternalFile> treeSort(FileSystem fileSystem) {
+      Stats.Timer timer = Stats.start(Stats.Phase.SORT);
+      // position of each file before sorting - names that only differ in case keep their original order
+      HashMap<InternalFile, Integer> originalOrder = new HashMap<>();
+      for (int i = 0; i < fileSystem.allFiles.size(); i++) {
+         originalOrder.put(fileSystem.allFiles.get(i), i);
       }
 
-      FileSystem.allFiles = newFileStructure;
+      // new order of internal files
+      ArrayList<InternalFile> newFileStructure = new ArrayList<>(fileSystem.allFiles.size());
+      recursiveTreeSort(fileSystem.index.getRoot(), originalOrder, newFileStructure);
+      timer.stop();
+      return newFileStructure;
    }
 
    /**
-    * Recursive helper method to sort files into tree structure
-    * @param currFile file to find parent directories for
-    * @param allDirs array list of all directories
-    * @param allFiles array list of all files
+    * Recursive helper method to sort files into tree structure by walking the directory trie.
+    * Sub-directories (each followed by their own contents) come before the files of a directory,
+    * and both are ordered alphabetically ignoring case.
+    * @param dir trie node of the directory to add the contents of
+    * @param originalOrder position of each file before sorting
     * @param newFileStructure array list to store organised structure
     */
-   private static void recursiveTreeSort(InternalFile currFile, ArrayList<InternalFile> allDirs,
-                                        ArrayList<InternalFile> allFiles, ArrayList<InternalFile> newFileStructure) {
-      // add current file to new structure
-      if (!newFileStructure.contains(currFile)) {
-         newFileStructure.add(currFile);
+   private static void recursiveTreeSort(PathIndex.Node dir, HashMap<InternalFile, Integer> originalOrder,
+                                         ArrayList<InternalFile> newFileStructure) {
+      // split the contents of the directory into sub-directories and files
+      ArrayList<PathIndex.Node> subDirs = new ArrayList<>();
+      ArrayList<PathIndex.Node> files = new ArrayList<>();
+      for (PathIndex.Node child : dir.children()) {
+         if (child.component.endsWith("/")) {
+            subDirs.add(child);
+         } else {
+            files.add(child);
+         }
+      }
+      Comparator<PathIndex.Node> order = Comparator
+              .comparing((PathIndex.Node node) -> node.component.toLowerCase())
+              .thenComparing(node -> node.file == null ? -1 : originalOrder.get(node.file));
+      subDirs.sort(order);
+      files.sort(order);
+
+      // add each sub-directory followed by its contents
+      for (PathIndex.Node subDir : subDirs) {
+         if (subDir.file != null) {
+            newFileStructure.add(subDir.file);
+         }
+         recursiveTreeSort(subDir, originalOrder, newFileStructure);
       }
+      // add the files of the current directory
+      for (PathIndex.Node file : files) {
+         newFileStructure.add(file.file);
+      }
+   }
 
-      // find any subdirectories of current file (directory)
-      for (InternalFile subDir : allDirs) {
-         // subdirectory found
-         if (subDir.name.startsWith(currFile.name) && !newFileStructure.contains(subDir)) {
-            newFileStructure.add(subDir);
-            recursiveTreeSort(subDir, allDirs, allFiles, newFileStructure);
+   /**
+    * Count the hard links of every file in a list: the number of directories directly
+    * below each entry whose name begins with the entry's name (at least 1)
+    * @param fileSystem file system the files belong to
+    * @param files internal files to count the hard links of
+    * @return number of hard links of each file, in the same order as the list
+    */
+   public static int[] countHardLinks(FileSystem fileSystem, ArrayList<InternalFile> files) {
+      int[] hardLinks = new int[files.size()];
+      // names of the sub-directories of each directory, sorted so names sharing a prefix are adjacent
+      HashMap<PathIndex.Node, String[]> subDirNames = new HashMap<>();
+      for (int i = 0; i < hardLinks.length; i++) {
+         InternalFile file = files.get(i);
+         PathIndex.Node node = file.node;
+         int count;
+         if (file.isDir) {
+            // a directory links to each of its sub-directories
+            count = subDirectoryNames(node, subDirNames).length;
+         } else {
+            // a file counts the directories beside it that extend its name (e.g. "file1" and "file1/")
+            String[] siblings = subDirectoryNames(node.parent, subDirNames);
+            int first = Arrays.binarySearch(siblings, node.component);
+            first = first < 0 ? -first - 1 : first;
+            count = 0;
+            while (first + count < siblings.length && siblings[first + count].startsWith(node.component)) {
+               count++;
+            }
          }
+         // no hard links were found - default to 1
+         hardLinks[i] = Math.max(count, 1);
       }
-      // find any files in current directory
-      for (InternalFile file : allFiles) {
-         // file belongs in current file (current subdirectory)
-         if (file.name.startsWith(currFile.name) && !file.name.substring(currFile.name.length()).contains("/") && !newFileStructure.contains(file)) {
-            newFileStructure.add(file);
+      return hardLinks;
+   }
+
+   /**
+    * Get the sorted names of the sub-directories directly below a directory
+    * @param dir trie node of the directory
+    * @param cache names already calculated for each directory
+    * @return sorted path components of the sub-directories
+    */
+   private static String[] subDirectoryNames(PathIndex.Node dir, HashMap<PathIndex.Node, String[]> cache) {
+      String[] names = cache.get(dir);
+      if (names == null) {
+         ArrayList<String> subDirs = new ArrayList<>();
+         for (PathIndex.Node child : dir.children()) {
+            if (child.file != null && child.file.isDir) {
+               subDirs.add(child.component);
+            }
          }
+         names = subDirs.toArray(new String[0]);
+         Arrays.sort(names);
+         cache.put(dir, names);
       }
+      return names;
+   }
 
+   /**
+    * Re-write notes file according to internal files in the file system's allFiles array
+    * @param fileSystem file system to rewrite - the caller holds the whole file system exclusively
+    */
+   public static void rewriteNotesFile(FileSystem fileSystem) {
+      rewriteNotesFile(fileSystem, 0);
    }
 
    /**
-    * Re-write notes file according to internal files in FileSystem.allFiles array
+    * Re-write notes file according to internal files in the file system's allFiles array, keeping the
+    * start of the current notes file as it is. The kept bytes are copied across without being parsed, and
+    * files within them keep their offsets; every other file is written after them.
+    * @param fileSystem file system to rewrite - the caller holds the whole file system exclusively
+    * @param keepLength number of bytes to keep from the start of the notes file (0 to write everything) -
+    *                   must end at the start of a line and only hold live entries whose data is not in memory
     */
-   public static void rewriteNotesFile() {
+   public static void rewriteNotesFile(FileSystem fileSystem, long keepLength) {
+      Stats.Timer timer = Stats.start(Stats.Phase.REWRITE);
+      File tempFile = null;
+      OutputStream extWriter = null;
       try {
+         fileSystem.out.flush();
          // prepare temporary file for writing
-         PrintWriter extWriter = null;
-         File tempFile = new File(Symbol.TEMP_FILE_NAME);
-         extWriter = new PrintWriter(new BufferedWriter(new FileWriter(tempFile, true)));
-         extWriter.println(Symbol.HEADER_TAG);
-
-         for (InternalFile file : FileSystem.allFiles) {
-            // print initial prefix for file ("=" for directory, "@" for file)
-            if (file.isDir) {
-               extWriter.print(Symbol.DIR);
-            } else {
-               extWriter.print(Symbol.FILE);
+         if (fileSystem.compressed) {
+            // files are read back in a different order than they are stored, which the archive cannot do
+            fileSystem.notes.beginRewrite();
+            tempFile = fileSystem.notes.createTempFile(Symbol.TEMP_EXTENSION);
+            extWriter = new BufferedOutputStream(fileSystem.notes.openOutput(tempFile), COPY_BUFFER_SIZE);
+         } else {
+            // each rewrite has its own temporary file beside the notes file, so it can be moved over it
+            tempFile = createTempFile(fileSystem.fs, Symbol.TEMP_EXTENSION);
+            FileOutputStream tempStream = new FileOutputStream(tempFile);
+            extWriter = new BufferedOutputStream(tempStream, COPY_BUFFER_SIZE);
+            if (keepLength > 0) {
+               // nothing is buffered yet, so the kept bytes go ahead of everything written after them
+               copyRegion(fileSystem, keepLength, tempStream.getChannel());
             }
+         }
+         // keep track of where each file is written, applied once the rewritten file is in place - until then
+         // the model has to go on pointing into the current notes file
+         boolean keep = keepLength > 0 && !fileSystem.compressed;
+         long position = keep ? keepLength : writeLine(extWriter, Symbol.HEADER_TAG);
+         ArrayList<Location> locations = new ArrayList<>();
 
-            // print the name of the file
-            extWriter.println(file.name);
+         for (InternalFile file : fileSystem.allFiles) {
+            // the file was copied across with the start of the notes file
+            if (keep && file.offset >= 0 && file.offset < keepLength) {
+               continue;
+            }
+            Location location = new Location(file, position);
+            locations.add(location);
+            // print initial prefix for file ("=" for directory, "@" for file) followed by the name of the file
+            position += writeLine(extWriter, (file.isDir ? Symbol.DIR : Symbol.FILE) + file.name());
 
-            // print the data of the file
-            if (file.data != null) {
-               for (String s : file.data) {
-                  extWriter.println(Symbol.DATA + s);
-               }
+            if (file.blob != null) {
+               // the data is written once with the blob
+               location.dataOffset = position;
+               position += writeLine(extWriter, Blob.referenceLine(file.blob.name()));
+               location.dataLength = position - location.dataOffset;
+            } else if (!file.isDir) {
+               position = writeData(fileSystem, location, extWriter, position);
             }
          }
 
+         // blobs follow every entry, in order of their hashes - blobs nothing refers to are left out
+         ArrayList<Blob> blobs = new ArrayList<>(fileSystem.blobs.values());
+         blobs.sort(Comparator.comparing(Blob::name));
+         for (Blob blob : blobs) {
+            if (blob.references == 0 || keep && blob.offset >= 0 && blob.offset < keepLength) {
+               continue;
+            }
+            Location location = new Location(blob, position);
+            locations.add(location);
+            position += writeLine(extWriter, Symbol.BLOB + blob.name());
+            position = writeData(fileSystem, location, extWriter, position);
+         }
+
          extWriter.flush();
          extWriter.close();
-         // delete current file system and replace with the temporary file
-         FileSystem.fs.delete();
-         tempFile.renameTo(FileSystem.fs);
+         // replace the current file system with the temporary file
+         fileSystem.out.close();
+         fileSystem.closeDataChannel();
+         if (fileSystem.compressed) {
+            fileSystem.notes.finishRewrite(tempFile, position);
+         } else {
+            replaceFile(tempFile, fileSystem.fs);
+         }
+         for (Location location : locations) {
+            location.apply();
+         }
+         fileSystem.dropUnreferencedBlobs();
+         // removed files were not written, so there is nothing left to remove
+         fileSystem.clearPendingRemovals();
+         if (fileSystem.compressed) {
+            fileSystem.out = fileSystem.notes.openWriter();
+         } else {
+            // the rewritten file system holds every change made so far
+            fileSystem.journal.reset();
+            // continue appending to the rewritten file system
+            fileSystem.openAppendWriter();
+         }
+         fileSystem.appendOffset = position;
+         // nothing removed was written
+         fileSystem.setDeadBytes(0, -1);
+         Stats.count(Stats.Counter.ENTRIES_REWRITTEN, locations.size());
+         Stats.count(Stats.Counter.BYTES_WRITTEN, position);
       } catch (IOException e) {
-         System.err.println("There was a problem with opening the file.");
-         e.printStackTrace();
+         // the notes file may have been closed or replaced part way through, so the model is loaded again
+         fileSystem.invalidate();
+         try {
+            if (extWriter != null) {
+               extWriter.close();
+            }
+         } catch (IOException closeError) {
+            // the temporary file is deleted whatever it holds
+         }
+         if (tempFile != null) {
+            tempFile.delete();
+         }
+         exitProgram("There was a problem with rewriting the file system (" + e.getMessage() + ").");
+      } finally {
+         timer.stop();
       }
    }
 
+   /**
+    * Where an entry is written by a rewrite, kept aside until the rewritten file has replaced the notes file
+    */
+   private static class Location {
+      private final InternalFile file;
+      private final long offset;
+      private long dataOffset;
+      private long dataLength;
+      // true once the data has been written out, so it no longer needs to be held in memory
+      private boolean dataWritten;
 
-   public static void decrompressFile(File source) {
-      try {
-         // cut off .gz extension and name as regular notes file
-         File decompressedFile = new File(source.getName().substring(0, source.getName().indexOf(".gz")));
-         GZIPInputStream gis = new GZIPInputStream(new FileInputStream(source));
-         FileOutputStream fos = new FileOutputStream(decompressedFile);
+      /**
+       * @param file file (or blob) being written
+       * @param offset byte offset of the entry's first line in the rewritten file
+       */
+      private Location(InternalFile file, long offset) {
+         this.file = file;
+         this.offset = offset;
+         this.dataOffset = file.dataOffset;
+         this.dataLength = file.dataLength;
+      }
 
-         // read all bytes from compressed file and write them (decompressed) in new file
-         byte[] allBytes = new byte[(int) source.length()];
-         gis.read(allBytes);
-         fos.write(allBytes);
-         fos.close();
-         gis.close();
+      /**
+       * Point the entry at where it was written in the rewritten file
+       */
+      private void apply() {
+         file.offset = offset;
+         file.dataOffset = dataOffset;
+         file.dataLength = dataLength;
+         if (dataWritten) {
+            file.data = null;
+         }
+      }
+   }
 
-         // replace compressed (.gz) file with regular notes
-         source.delete();
-         decompressedFile.renameTo(source);
-         FileSystem.fs = decompressedFile;
-      } catch (Exception e) {
-         e.printStackTrace();
-         Util.exitProgram("An error occurred whilst decompressing the file system.");
+   /**
+    * Write the data lines of a file being rewritten, streamed from the current notes file
+    * @param fileSystem file system being rewritten
+    * @param location where the file (or blob) whose data is written is being written to
+    * @param os stream of the rewritten notes file
+    * @param position offset the data is written at
+    * @return offset just after the data
+    */
+   private static long writeData(FileSystem fileSystem, Location location, OutputStream os, long position) throws IOException {
+      try (InputStream data = location.file.openData(fileSystem)) {
+         location.dataOffset = position;
+         position += copyDataLines(data, os);
       }
+      location.dataLength = position - location.dataOffset;
+      location.dataWritten = true;
+      return position;
+   }
+
+   /**
+    * Create a uniquely named file beside another for temporary use, deleted on exit if it is left behind
+    * @param beside the file the temporary file is created beside
+    * @param suffix suffix of the file name
+    * @return the new empty file
+    */
+   public static File createTempFile(File beside, String suffix) throws IOException {
+      File dir = beside.getAbsoluteFile().getParentFile();
+      File temp = Files.createTempFile(dir.toPath(), "." + beside.getName() + ".", suffix).toFile();
+      temp.deleteOnExit();
+      return temp;
    }
 
+   /**
+    * Replace a file with a new version written to a temporary file beside it. The new version is forced to
+    * disk and then moved over the file in one step, so that after a crash the file holds either the old or
+    * the new version.
+    * @param tempFile file holding the new version (created by createTempFile)
+    * @param target the file to replace
+    */
+   public static void replaceFile(File tempFile, File target) throws IOException {
+      replaceFile(tempFile, target, target);
+   }
 
-   public static void compressFile(File source) {
+   /**
+    * Replace a file with a new version written to a temporary file beside it, giving it the permissions of
+    * another file (e.g. a sidecar of the notes file, which may not exist yet, gets those of the notes file)
+    * @param tempFile file holding the new version (created by createTempFile)
+    * @param target the file to replace
+    * @param permissionsOf the file whose permissions the new version is given
+    */
+   public static void replaceFile(File tempFile, File target, File permissionsOf) throws IOException {
+      // temporary files are only readable by their owner - keep the permissions of the file
+      try {
+         Files.setPosixFilePermissions(tempFile.toPath(), Files.getPosixFilePermissions(permissionsOf.toPath()));
+      } catch (UnsupportedOperationException | NoSuchFileException e) {
+         // permissions cannot be copied on this file system, or there is no file to copy them from
+      }
+      try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+         channel.force(true);
+      }
       try {
-         // add .gz extension back to notes file
-         File compressedFile = new File(source.getName() + ".gz");
-         FileInputStream fis = new FileInputStream(source);
-         GZIPOutputStream gos = new GZIPOutputStream(new FileOutputStream(compressedFile));
+         Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+         Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      forceDirectory(target);
+   }
 
-         // write all notes from decompressed file into compressed format
-         byte[] allBytes = new byte[(int) source.length()];
-         fis.read(allBytes);
-         gos.write(allBytes);
-         gos.close();
-         fis.close();
+   /**
+    * Force the directory holding a file to disk, so that a file created or replaced within it is still
+    * found after a crash
+    * @param file the file whose directory is forced
+    */
+   public static void forceDirectory(File file) {
+      try (FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+         dir.force(true);
+      } catch (IOException e) {
+         // directories cannot be opened or forced on every platform
+      }
+   }
 
-         // rename decompressed file to add .gz
-         source.delete();
-         compressedFile.renameTo(source);
-         FileSystem.fs = compressedFile;
-      } catch (Exception e) {
-         e.printStackTrace();
-         Util.exitProgram("An error occurred whilst compressing the file system.");
+   /**
+    * Copy the start of a notes file into a channel
+    * @param fileSystem file system whose notes file is copied
+    * @param length number of bytes to copy
+    * @param target channel to copy to
+    */
+   private static void copyRegion(FileSystem fileSystem, long length, FileChannel target) throws IOException {
+      FileChannel source = fileSystem.dataChannel();
+      long copied = 0;
+      while (copied < length) {
+         long transferred = source.transferTo(copied, length - copied, target);
+         if (transferred <= 0) {
+            throw new IOException("The notes file ended before " + length + " bytes could be copied.");
+         }
+         copied += transferred;
       }
    }
 
+   /**
+    * Write a single line of text followed by a newline
+    * @param os stream to write to
+    * @param text text of the line
+    * @return number of bytes written
+    */
+   public static long writeLine(OutputStream os, String text) throws IOException {
+      byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+      os.write(bytes);
+      os.write('\n');
+      return bytes.length + 1;
+   }
+
+   /**
+    * Copy the data of a file into a notes file, adding the data prefix to the start of every line
+    * @param data stream of data lines (as given by InternalFile.openData)
+    * @param os stream to write to
+    * @return number of bytes written
+    */
+   private static long copyDataLines(InputStream data, OutputStream os) throws IOException {
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      long written = 0;
+      boolean atLineStart = true;
+      int read;
+      while ((read = data.read(buffer)) != -1) {
+         int start = 0;
+         for (int i = 0; i < read; i++) {
+            if (atLineStart) {
+               // flush the previous line before inserting the prefix
+               os.write(buffer, start, i - start);
+               os.write(Symbol.DATA.charAt(0));
+               written++;
+               start = i;
+               atLineStart = false;
+            }
+            if (buffer[i] == '\n') {
+               atLineStart = true;
+            }
+         }
+         os.write(buffer, start, read - start);
+         written += read;
+      }
+      return written;
+   }
 
+   /**
+    * Destination of the data lines converted from external data
+    */
+   public interface LineSink {
+      /**
+       * Take a single data line - the array is reused for the next line once this returns
+       * @param line characters of the line, starting with the data prefix
+       * @param length number of characters of the line
+       */
+      void accept(char[] line, int length) throws IOException;
+   }
 }
@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Copying an external file into the file system, replacing the copy made by the previous call. The
+ * file system is restored for every iteration so the removed copies do not build up.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyInBenchmark extends FileSystemState {
+   private Object fileSystem;
+   private Object functions;
+
+   @Setup(Level.Iteration)
+   public void load() throws IOException {
+      restore();
+      fileSystem = Vsfs.open(notes, false);
+      functions = Vsfs.functions(fileSystem);
+   }
+
+   @TearDown(Level.Iteration)
+   public void close() {
+      Vsfs.close(fileSystem);
+   }
+
+   @Benchmark
+   public void copyIn() {
+      Vsfs.copyIn(functions, external.toString(), "bench/copied-in.dat");
+   }
+}
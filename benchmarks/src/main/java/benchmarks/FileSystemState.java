@@ -0,0 +1,68 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Synthetic file system shared by the benchmarks of a trial, written to a temporary directory. The
+ * benchmarks run on a working copy of the file system, which can be restored whenever a benchmark has
+ * changed it.
+ */
+@State(Scope.Benchmark)
+public abstract class FileSystemState {
+   // number of files in the file system
+   @Param({"1000", "10000", "100000", "1000000"})
+   public int entries;
+
+   // content of the files - "plain" text or "encoded" binary data
+   @Param({"plain", "encoded"})
+   public String content;
+
+   protected Path directory;
+   // file system as it was generated
+   protected Path pristine;
+   // copy of the file system the benchmarks run on
+   protected Path notes;
+   // external file for copying in, holding the same kind of content as the file system
+   protected Path external;
+
+   @Setup(Level.Trial)
+   public void createFileSystem() throws IOException {
+      boolean encoded = content.equals("encoded");
+      directory = Files.createTempDirectory("vsfs-bench");
+      pristine = directory.resolve("pristine.notes");
+      notes = directory.resolve("bench.notes");
+      external = directory.resolve("external.dat");
+      SyntheticNotes.write(pristine, entries, encoded);
+      SyntheticNotes.writeExternal(external, encoded);
+      restore();
+   }
+
+   @TearDown(Level.Trial)
+   public void deleteFileSystem() throws IOException {
+      try (Stream<Path> files = Files.walk(directory)) {
+         // delete the contents of each directory before the directory itself
+         for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+            Files.delete(file);
+         }
+      }
+   }
+
+   /**
+    * Replace the working copy with the file system as it was generated
+    */
+   protected void restore() throws IOException {
+      Files.copy(pristine, notes, StandardCopyOption.REPLACE_EXISTING);
+   }
+}
@@ -0,0 +1,71 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commands that leave the file system unchanged, run on a file system loaded once per iteration
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark extends FileSystemState {
+   private Object fileSystem;
+   private Object functions;
+   private PrintStream stdout;
+   private Path copiedOut;
+   // index of the next file copied out, so that every file is read in turn
+   private int next;
+
+   @Setup(Level.Iteration)
+   public void load() {
+      fileSystem = Vsfs.open(notes, true);
+      functions = Vsfs.functions(fileSystem);
+      copiedOut = directory.resolve("copied-out.dat");
+      next = 0;
+      // the listing is produced in full but not printed
+      stdout = System.out;
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+   }
+
+   @TearDown(Level.Iteration)
+   public void close() throws IOException {
+      System.setOut(stdout);
+      Vsfs.close(fileSystem);
+      Files.deleteIfExists(copiedOut);
+   }
+
+   @Benchmark
+   public List<?> treeSort() {
+      return Vsfs.treeSort(fileSystem);
+   }
+
+   @Benchmark
+   public void list() {
+      Vsfs.list(functions);
+   }
+
+   @Benchmark
+   public void copyOut() {
+      Vsfs.copyOut(functions, SyntheticNotes.fileName(next), copiedOut.toString());
+      next = (next + 1) % entries;
+   }
+}
@@ -0,0 +1,51 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Commands that can only run once on a file system before it has to be restored, so each call is timed
+ * on its own against a freshly restored and loaded file system
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RewriteBenchmark extends FileSystemState {
+   private Object fileSystem;
+   private Object functions;
+
+   @Setup(Level.Invocation)
+   public void load() throws IOException {
+      restore();
+      fileSystem = Vsfs.open(notes, false);
+      functions = Vsfs.functions(fileSystem);
+   }
+
+   @TearDown(Level.Invocation)
+   public void close() {
+      Vsfs.close(fileSystem);
+   }
+
+   @Benchmark
+   public void rm() {
+      Vsfs.rm(functions, SyntheticNotes.fileName(entries / 2));
+   }
+
+   @Benchmark
+   public void defrag() {
+      Vsfs.defrag(functions);
+   }
+}
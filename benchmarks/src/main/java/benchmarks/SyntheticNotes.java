@@ -0,0 +1,83 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Writes the synthetic file systems the benchmarks run on. Files are spread over directories of
+ * FILES_PER_DIR files, with every directory written out explicitly. Plain files hold two short lines of
+ * text, and encoded files two full lines of base64 encoded random bytes. The same arguments always
+ * give the same file system.
+ */
+final class SyntheticNotes {
+   static final int FILES_PER_DIR = 100;
+   // size of the external file copied in by the benchmarks
+   private static final int EXTERNAL_SIZE = 4 * 1024;
+
+   private SyntheticNotes() {
+   }
+
+   /**
+    * Get the name of one of the files of a synthetic file system
+    * @param index index of the file, from 0 to one less than the number of files
+    * @return full internal name of the file
+    */
+   static String fileName(int index) {
+      return "d" + (index / FILES_PER_DIR) + "/f" + index + ".txt";
+   }
+
+   /**
+    * Write a synthetic file system
+    * @param notes the notes file to write
+    * @param files number of files in the file system
+    * @param encoded true for files of encoded binary data, false for files of plain text
+    */
+   static void write(Path notes, int files, boolean encoded) throws IOException {
+      Random random = new Random(files);
+      Base64.Encoder encoder = Base64.getEncoder();
+      // 190 bytes encode to 254 characters, which fills a single data line
+      byte[] block = new byte[190];
+      try (BufferedWriter out = Files.newBufferedWriter(notes, StandardCharsets.UTF_8)) {
+         out.write("NOTES V1.0\n");
+         for (int i = 0; i < files; i++) {
+            if (i % FILES_PER_DIR == 0) {
+               out.write("=d" + (i / FILES_PER_DIR) + "/\n");
+            }
+            out.write("@" + fileName(i) + "\n");
+            if (encoded) {
+               out.write(" !!b64-encoded\n");
+               for (int line = 0; line < 2; line++) {
+                  random.nextBytes(block);
+                  out.write(" " + encoder.encodeToString(block) + "\n");
+               }
+            } else {
+               out.write(" line one of synthetic file " + i + "\n");
+               out.write(" line two holds " + random.nextInt() + "\n");
+            }
+         }
+      }
+   }
+
+   /**
+    * Write the external file copied in by the benchmarks
+    * @param file the external file to write
+    * @param encoded true for random binary data (which is encoded when copied in), false for plain text
+    */
+   static void writeExternal(Path file, boolean encoded) throws IOException {
+      Random random = new Random(EXTERNAL_SIZE);
+      byte[] data = new byte[EXTERNAL_SIZE];
+      if (encoded) {
+         random.nextBytes(data);
+      } else {
+         for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 64 == 63 ? '\n' : 'a' + random.nextInt(26));
+         }
+      }
+      Files.write(file, data);
+   }
+}
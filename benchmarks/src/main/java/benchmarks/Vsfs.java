@@ -0,0 +1,196 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Access to the VSFS classes for the benchmarks. VSFS is built in the default package, which classes in a
+ * named package cannot refer to (and JMH only generates code for benchmarks in a named package), so the
+ * public methods the benchmarks use are looked up once and called through method handles, which the JIT
+ * compiles down to direct calls.
+ */
+final class Vsfs {
+   private static final MethodHandle NEW_FILE_SYSTEM;
+   private static final MethodHandle OPEN_SESSION;
+   private static final MethodHandle CLOSE_FS;
+   private static final MethodHandle NEW_FUNCTIONS;
+   private static final MethodHandle TREE_SORT;
+   private static final MethodHandle LIST;
+   private static final MethodHandle RM;
+   private static final MethodHandle DEFRAG;
+   private static final MethodHandle COPY_IN;
+   private static final MethodHandle COPY_OUT;
+
+   static {
+      try {
+         MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+         Class<?> fileSystem = Class.forName("FileSystem");
+         Class<?> functions = Class.forName("Functions");
+         Class<?> util = Class.forName("Util");
+         // every handle takes and returns Object in place of the VSFS classes so that it can be invoked exactly
+         NEW_FILE_SYSTEM = lookup.findConstructor(fileSystem, MethodType.methodType(void.class, String.class))
+                 .asType(MethodType.methodType(Object.class, String.class));
+         OPEN_SESSION = lookup.findVirtual(fileSystem, "openSession",
+                 MethodType.methodType(void.class, boolean.class, boolean.class))
+                 .asType(MethodType.methodType(void.class, Object.class, boolean.class, boolean.class));
+         CLOSE_FS = lookup.findVirtual(fileSystem, "closeFS", MethodType.methodType(void.class))
+                 .asType(MethodType.methodType(void.class, Object.class));
+         NEW_FUNCTIONS = lookup.findConstructor(functions, MethodType.methodType(void.class, fileSystem))
+                 .asType(MethodType.methodType(Object.class, Object.class));
+         TREE_SORT = lookup.findStatic(util, "treeSort", MethodType.methodType(ArrayList.class, fileSystem))
+                 .asType(MethodType.methodType(List.class, Object.class));
+         LIST = lookup.findVirtual(functions, "list", MethodType.methodType(void.class))
+                 .asType(MethodType.methodType(void.class, Object.class));
+         RM = lookup.findVirtual(functions, "rm", MethodType.methodType(void.class, String.class))
+                 .asType(MethodType.methodType(void.class, Object.class, String.class));
+         DEFRAG = lookup.findVirtual(functions, "defrag", MethodType.methodType(void.class))
+                 .asType(MethodType.methodType(void.class, Object.class));
+         COPY_IN = lookup.findVirtual(functions, "copyIn", MethodType.methodType(void.class, String.class, String.class))
+                 .asType(MethodType.methodType(void.class, Object.class, String.class, String.class));
+         COPY_OUT = lookup.findVirtual(functions, "copyOut", MethodType.methodType(void.class, String.class, String.class))
+                 .asType(MethodType.methodType(void.class, Object.class, String.class, String.class));
+      } catch (ReflectiveOperationException e) {
+         throw new ExceptionInInitializerError(e);
+      }
+   }
+
+   private Vsfs() {
+   }
+
+   /**
+    * Load a file system and open a session on it, as a command run from the command line would
+    * @param notes the notes file of the file system
+    * @param readOnly true to open the file system as list and copyout do, false to open it for changes
+    * @return the loaded FileSystem
+    */
+   static Object open(Path notes, boolean readOnly) {
+      try {
+         Object fileSystem = (Object) NEW_FILE_SYSTEM.invokeExact(notes.toString());
+         OPEN_SESSION.invokeExact(fileSystem, readOnly, true);
+         return fileSystem;
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Write out any changes to a file system and release it
+    * @param fileSystem the FileSystem to close
+    */
+   static void close(Object fileSystem) {
+      try {
+         CLOSE_FS.invokeExact(fileSystem);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Create the functions that run commands on a file system
+    * @param fileSystem a loaded FileSystem
+    * @return the Functions of the file system
+    */
+   static Object functions(Object fileSystem) {
+      try {
+         return (Object) NEW_FUNCTIONS.invokeExact(fileSystem);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Sort the files of a file system into tree order (Util.treeSort)
+    * @param fileSystem a loaded FileSystem
+    * @return the sorted internal files
+    */
+   static List<?> treeSort(Object fileSystem) {
+      try {
+         return (List<?>) TREE_SORT.invokeExact(fileSystem);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * List every file of a file system (Functions.list)
+    * @param functions Functions of a loaded file system
+    */
+   static void list(Object functions) {
+      try {
+         LIST.invokeExact(functions);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Remove a file or directory (Functions.rm)
+    * @param functions Functions of a loaded file system
+    * @param name full name of the file or directory
+    */
+   static void rm(Object functions, String name) {
+      try {
+         RM.invokeExact(functions, name);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Defragment a file system (Functions.defrag)
+    * @param functions Functions of a loaded file system
+    */
+   static void defrag(Object functions) {
+      try {
+         DEFRAG.invokeExact(functions);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Copy an external file into a file system (Functions.copyIn)
+    * @param functions Functions of a loaded file system
+    * @param extFileName name of the external file
+    * @param intFileName name to give the internal file
+    */
+   static void copyIn(Object functions, String extFileName, String intFileName) {
+      try {
+         COPY_IN.invokeExact(functions, extFileName, intFileName);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Copy an internal file out of a file system (Functions.copyOut)
+    * @param functions Functions of a loaded file system
+    * @param intFileName name of the internal file
+    * @param extFileName name of the external file to write
+    */
+   static void copyOut(Object functions, String intFileName, String extFileName) {
+      try {
+         COPY_OUT.invokeExact(functions, intFileName, extFileName);
+      } catch (Throwable e) {
+         throw rethrow(e);
+      }
+   }
+
+   /**
+    * Pass on an exception thrown through a method handle - VSFS only throws unchecked exceptions
+    * @param e the exception thrown
+    * @return exception to throw in its place
+    */
+   private static RuntimeException rethrow(Throwable e) {
+      if (e instanceof RuntimeException) {
+         return (RuntimeException) e;
+      } else if (e instanceof Error) {
+         throw (Error) e;
+      }
+      return new IllegalStateException(e);
+   }
+}
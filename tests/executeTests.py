@@ -99,6 +99,27 @@ for dir in [x for x in Path('.').glob('**/*') if x.is_dir()]:
                 rm {fs}Temp.notes
                 ''')
 
+            elif command == 'batch':
+                os.system(f'''
+                cp {fs}.notes {fs}Temp.notes
+                ../VSFS batch {fs}Temp.notes {fs}.txt
+                cp {fs}Temp.notes {fs}.out
+                rm {fs}Temp.notes
+                ''')
+
+            elif command == 'convert':
+                os.system(f'''
+                cp {fs}.notes {fs}Temp.notes
+                ../VSFS convert {fs}Temp.notes V2
+                ../VSFS convert {fs}Temp.notes V1
+                cp {fs}Temp.notes {fs}.out
+                rm {fs}Temp.notes
+                ''')
+            elif command == 'convert/outputErrors':
+                os.system(f'''
+                ../VSFS convert {fs}.notes V3 1> {fs}.out 2>&1
+                ''')
+
             elif command == 'index':
                 os.system(f'''
                 ../VSFS index {fs}.notes 1> {fs}.out 2>&1
@@ -0,0 +1,164 @@
+#! /usr/bin/python3
+"""Generate synthetic NOTES V1.0 file systems of a given size and shape.
+
+Every generated file system is valid: directories are written before anything inside them, names
+follow the naming rules of the format, and no line is longer than 255 characters. The same
+arguments (including the seed) always produce the same file system.
+
+Example:
+    ./generateNotes.py big.notes --entries 100000 --depth 3 --fanout 8 --sizes exp:2000 \\
+        --binary-ratio 0.2 --tombstone-ratio 0.1
+"""
+import argparse
+import base64
+import gzip
+import random
+
+HEADER = 'NOTES V1.0'
+ENCODED_SHEBANG = '!!b64-encoded'
+# longest data line, excluding the data prefix (lines are at most 255 characters)
+MAX_DATA = 254
+# longest line of generated text - text files are made of lines up to this length
+TEXT_LINE = 80
+WORDS = ('alpha', 'beta', 'gamma', 'delta', 'notes', 'file', 'system', 'data', 'line', 'text',
+         'block', 'entry', 'value', 'index', 'tree', 'node', 'path', 'name', 'size', 'disk')
+
+
+def parse_sizes(spec):
+    """Parse a file size distribution into a function returning a size in bytes.
+
+    fixed:N          every file holds N bytes
+    uniform:MIN:MAX  sizes spread evenly between MIN and MAX bytes
+    exp:MEAN         exponentially distributed sizes with the given mean (many small, few large)
+    """
+    kind, _, args = spec.partition(':')
+    values = [int(v) for v in args.split(':')] if args else []
+    if kind == 'fixed' and len(values) == 1:
+        return lambda rng: values[0]
+    if kind == 'uniform' and len(values) == 2:
+        return lambda rng: rng.randint(values[0], values[1])
+    if kind == 'exp' and len(values) == 1:
+        return lambda rng: int(rng.expovariate(1 / values[0])) if values[0] > 0 else 0
+    raise argparse.ArgumentTypeError(f'invalid size distribution: {spec}')
+
+
+def directory_names(depth, fanout, limit):
+    """List the directories of a tree of the given depth and fan-out, parents before children."""
+    names = []
+    level = ['']
+    for d in range(depth):
+        next_level = []
+        for parent in level:
+            for i in range(fanout):
+                if len(names) >= limit:
+                    return names
+                name = f'{parent}d{d}x{i}/'
+                names.append(name)
+                next_level.append(name)
+        level = next_level
+    return names
+
+
+def text_lines(rng, size):
+    """Generate plain text data lines holding roughly size bytes."""
+    lines = []
+    remaining = size
+    while remaining > 0:
+        words = []
+        length = 0
+        target = min(remaining, rng.randint(1, TEXT_LINE))
+        while length < target:
+            word = rng.choice(WORDS)
+            words.append(word)
+            length += len(word) + 1
+        line = ' '.join(words)[:target]
+        lines.append(line)
+        remaining -= len(line) + 1
+    return lines
+
+
+def encoded_lines(rng, size):
+    """Generate the data lines of an encoded file holding size random bytes."""
+    data = base64.b64encode(rng.randbytes(size)).decode('ascii')
+    return [ENCODED_SHEBANG] + [data[i:i + MAX_DATA] for i in range(0, len(data), MAX_DATA)]
+
+
+def entry_lines(prefix, name, data):
+    """Get the lines of an entry: its name line followed by its data lines."""
+    return [prefix + name] + [' ' + line for line in data]
+
+
+def generate(path, entries=1000, depth=2, fanout=10, sizes='exp:1000', binary_ratio=0.1,
+             tombstone_ratio=0.0, seed=0, compress=False):
+    """Write a synthetic file system.
+
+    entries          number of files in the file system
+    depth, fanout    shape of the directory tree the files are spread over
+    sizes            file size distribution (see parse_sizes)
+    binary_ratio     fraction of files holding binary (base64 encoded) data
+    tombstone_ratio  fraction of extra entries written as removed ("#") lines, or as comments
+    compress         gzip the file system (name it .notes.gz)
+
+    Returns a summary of the file system, including the names of sample entries to run commands on.
+    """
+    rng = random.Random(seed)
+    size_of = parse_sizes(sizes) if isinstance(sizes, str) else sizes
+    dirs = directory_names(depth, fanout, max(entries, 1))
+    summary = {'files': 0, 'dirs': len(dirs), 'binary': 0, 'tombstones': 0,
+               'text_file': None, 'binary_file': None, 'top_dir': dirs[0] if dirs else None}
+
+    opener = gzip.open if compress else open
+    with opener(path, 'wt', encoding='ascii', newline='\n') as out:
+        out.write(HEADER + '\n')
+        for name in dirs:
+            out.write('=' + name + '\n')
+        for i in range(entries):
+            parent = rng.choice(dirs) if dirs and rng.random() < 0.95 else ''
+            name = f'{parent}f{i}.{"bin" if rng.random() < binary_ratio else "txt"}'
+            binary = name.endswith('.bin')
+            size = size_of(rng)
+            data = encoded_lines(rng, size) if binary else text_lines(rng, size)
+
+            # removed entries are mixed in with the live ones, each with a removed copy of its data
+            while rng.random() < tombstone_ratio:
+                summary['tombstones'] += 1
+                if rng.random() < 0.5:
+                    out.write('# comment line ' + str(rng.random()) + '\n')
+                else:
+                    removed = entry_lines('@', f'{parent}removed{summary["tombstones"]}.txt',
+                                          text_lines(rng, rng.randint(0, 300)))
+                    out.write(''.join('#' + line + '\n' for line in removed))
+
+            out.write(''.join(line + '\n' for line in entry_lines('@', name, data)))
+            summary['files'] += 1
+            if binary:
+                summary['binary'] += 1
+                summary['binary_file'] = summary['binary_file'] or name
+            else:
+                summary['text_file'] = summary['text_file'] or name
+    return summary
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Generate a synthetic NOTES V1.0 file system.')
+    parser.add_argument('path', help='file to write (.notes, or .notes.gz with --gzip)')
+    parser.add_argument('--entries', type=int, default=1000, help='number of files (default 1000)')
+    parser.add_argument('--depth', type=int, default=2, help='depth of the directory tree (default 2)')
+    parser.add_argument('--fanout', type=int, default=10, help='subdirectories of each directory (default 10)')
+    parser.add_argument('--sizes', type=parse_sizes, default='exp:1000',
+                        help='file size distribution: fixed:N, uniform:MIN:MAX or exp:MEAN (default exp:1000)')
+    parser.add_argument('--binary-ratio', type=float, default=0.1, help='fraction of binary files (default 0.1)')
+    parser.add_argument('--tombstone-ratio', type=float, default=0.0,
+                        help='fraction of extra removed entries and comments (default 0)')
+    parser.add_argument('--seed', type=int, default=0, help='random seed (default 0)')
+    parser.add_argument('--gzip', action='store_true', help='write a gzip compressed file system')
+    args = parser.parse_args()
+
+    summary = generate(args.path, args.entries, args.depth, args.fanout, args.sizes, args.binary_ratio,
+                       args.tombstone_ratio, args.seed, args.gzip)
+    print(f'{args.path}: {summary["files"]} files ({summary["binary"]} binary), {summary["dirs"]} directories, '
+          f'{summary["tombstones"]} removed entries and comments')
+
+
+if __name__ == '__main__':
+    main()
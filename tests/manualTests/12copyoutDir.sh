@@ -1,2 +1,4 @@
 #! /usr/bin/sh
-../../VSFS copyout 12copyoutDir.notes dir1/ 12copyoutDir.out 1> 12copyoutDir.out 2>&1
+../../VSFS copyout 12copyoutDir.notes dir1/ 12copyoutDirTemp 1> 12copyoutDir.out 2>&1
+for f in 12copyoutDirTemp/file1 12copyoutDirTemp/file2; do echo "$f:"; cat $f; done >> 12copyoutDir.out 2>&1
+rm -r 12copyoutDirTemp
@@ -0,0 +1,7 @@
+#! /usr/bin/sh
+cp 14blobLikeText.notes 14blobLikeTextTemp.notes
+../../VSFS copyin 14blobLikeTextTemp.notes 14blobLikeText.txt newReference
+../../VSFS copyout 14blobLikeTextTemp.notes newReference 14blobLikeTextNew.txt
+../../VSFS copyout 14blobLikeTextTemp.notes oldReference 14blobLikeTextOld.txt
+cat 14blobLikeTextTemp.notes 14blobLikeTextNew.txt 14blobLikeTextOld.txt > 14blobLikeText.out 2>&1
+rm 14blobLikeTextTemp.notes 14blobLikeTextNew.txt 14blobLikeTextOld.txt
@@ -0,0 +1,5 @@
+#! /usr/bin/sh
+cp 15batchStdin.notes 15batchStdinTemp.notes
+printf 'copyout dir1/file1 15batchStdinTemp.txt\ncopyin 15batchStdinTemp.txt dir2/file2\nrm dir1/file1\n' | ../../VSFS batch 15batchStdinTemp.notes - 1> 15batchStdin.out 2>&1
+cat 15batchStdinTemp.notes >> 15batchStdin.out
+rm 15batchStdinTemp.notes 15batchStdinTemp.txt
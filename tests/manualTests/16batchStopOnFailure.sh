@@ -0,0 +1,6 @@
+#! /usr/bin/sh
+cp 16batchStopOnFailure.notes 16batchStopOnFailureTemp.notes
+../../VSFS batch 16batchStopOnFailureTemp.notes 16batchStopOnFailure.txt 1> 16batchStopOnFailure.out 2>&1
+echo "exit status $?" >> 16batchStopOnFailure.out
+cat 16batchStopOnFailureTemp.notes >> 16batchStopOnFailure.out
+rm -f 16batchStopOnFailureTemp.notes 16batchStopOnFailureTemp.notes.journal
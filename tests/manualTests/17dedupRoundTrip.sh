@@ -0,0 +1,18 @@
+#! /usr/bin/sh
+# the property turning deduplication on is passed to the JVM through JAVA_TOOL_OPTIONS
+cp 17dedupRoundTrip.notes 17dedupRoundTripTemp.notes
+JAVA_TOOL_OPTIONS=-Dvsfs.dedup=true ../../VSFS copyin 17dedupRoundTripTemp.notes 17dedupRoundTrip.txt dir1/first 2>&1 | grep -v '^Picked up' > 17dedupRoundTrip.out
+JAVA_TOOL_OPTIONS=-Dvsfs.dedup=true ../../VSFS copyin 17dedupRoundTripTemp.notes 17dedupRoundTrip.txt dir1/second 2>&1 | grep -v '^Picked up' >> 17dedupRoundTrip.out
+cat 17dedupRoundTripTemp.notes >> 17dedupRoundTrip.out
+../../VSFS copyout 17dedupRoundTripTemp.notes dir1/second 17dedupRoundTripTemp.txt >> 17dedupRoundTrip.out 2>&1
+cat 17dedupRoundTripTemp.txt >> 17dedupRoundTrip.out
+# the blob is kept by defrag whilst a file refers to it, and dropped once none does
+../../VSFS rm 17dedupRoundTripTemp.notes dir1/first >> 17dedupRoundTrip.out 2>&1
+../../VSFS defrag 17dedupRoundTripTemp.notes >> 17dedupRoundTrip.out 2>&1
+cat 17dedupRoundTripTemp.notes >> 17dedupRoundTrip.out
+../../VSFS copyout 17dedupRoundTripTemp.notes dir1/second 17dedupRoundTripTemp.txt >> 17dedupRoundTrip.out 2>&1
+cat 17dedupRoundTripTemp.txt >> 17dedupRoundTrip.out
+../../VSFS rm 17dedupRoundTripTemp.notes dir1/second >> 17dedupRoundTrip.out 2>&1
+../../VSFS defrag 17dedupRoundTripTemp.notes >> 17dedupRoundTrip.out 2>&1
+cat 17dedupRoundTripTemp.notes >> 17dedupRoundTrip.out
+rm 17dedupRoundTripTemp.notes 17dedupRoundTripTemp.txt
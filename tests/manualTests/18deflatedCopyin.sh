@@ -0,0 +1,8 @@
+#! /usr/bin/sh
+# the property turning deflating on is passed to the JVM through JAVA_TOOL_OPTIONS
+cp 18deflatedCopyin.notes 18deflatedCopyinTemp.notes
+JAVA_TOOL_OPTIONS=-Dvsfs.deflate.minBytes=1024 ../../VSFS copyin 18deflatedCopyinTemp.notes 18deflatedCopyin.txt deflated 2>&1 | grep -v '^Picked up' > 18deflatedCopyin.out
+cat 18deflatedCopyinTemp.notes >> 18deflatedCopyin.out
+../../VSFS copyout 18deflatedCopyinTemp.notes deflated 18deflatedCopyinTemp.txt >> 18deflatedCopyin.out 2>&1
+cmp 18deflatedCopyinTemp.txt 18deflatedCopyin.txt >> 18deflatedCopyin.out 2>&1 && echo "copied out unchanged" >> 18deflatedCopyin.out
+rm 18deflatedCopyinTemp.notes 18deflatedCopyinTemp.txt
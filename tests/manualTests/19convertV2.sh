@@ -0,0 +1,13 @@
+#! /usr/bin/sh
+cp 19convertV2.notes 19convertV2Temp.notes
+../../VSFS convert 19convertV2Temp.notes V2 > 19convertV2.out 2>&1
+head -c 8 19convertV2Temp.notes >> 19convertV2.out
+echo >> 19convertV2.out
+../../VSFS convert 19convertV2Temp.notes V2 >> 19convertV2.out 2>&1
+../../VSFS copyout 19convertV2Temp.notes convert/dir1/text 19convertV2Temp.txt >> 19convertV2.out 2>&1
+cat 19convertV2Temp.txt >> 19convertV2.out
+../../VSFS copyin 19convertV2Temp.notes 19convertV2.txt convert/dir2/new >> 19convertV2.out 2>&1
+../../VSFS rm 19convertV2Temp.notes convert/dir1/binary >> 19convertV2.out 2>&1
+../../VSFS convert 19convertV2Temp.notes V1 >> 19convertV2.out 2>&1
+cat 19convertV2Temp.notes >> 19convertV2.out
+rm 19convertV2Temp.notes 19convertV2Temp.txt
@@ -0,0 +1,10 @@
+#! /usr/bin/sh
+# lines longer than a data line are kept in V2 and must not be truncated when converting back to V1
+cp 20convertLongLines.notes 20convertLongLinesTemp.notes
+../../VSFS convert 20convertLongLinesTemp.notes V2 > 20convertLongLines.out 2>&1
+../../VSFS copyin 20convertLongLinesTemp.notes 20convertLongLines.txt convert/long >> 20convertLongLines.out 2>&1
+../../VSFS convert 20convertLongLinesTemp.notes V1 >> 20convertLongLines.out 2>&1
+cat 20convertLongLinesTemp.notes >> 20convertLongLines.out
+../../VSFS copyout 20convertLongLinesTemp.notes convert/long 20convertLongLinesTemp.txt >> 20convertLongLines.out 2>&1
+cmp 20convertLongLinesTemp.txt 20convertLongLines.txt >> 20convertLongLines.out 2>&1 && echo "copied out unchanged" >> 20convertLongLines.out
+rm 20convertLongLinesTemp.notes 20convertLongLinesTemp.txt
@@ -0,0 +1,225 @@
+#! /usr/bin/python3
+"""Run VSFS commands against generated file systems of increasing size and check for regressions.
+
+For each size a file system is generated (see generateNotes.py) and every command is run against a
+fresh copy of it, recording the wall time and peak resident memory of the VSFS process. The results
+are compared with a stored baseline, and a command fails when it is slower or uses more memory than
+its baseline by more than the allowed threshold. Commands are also checked for how their time grows
+with the size of the file system, so that quadratic behaviour is caught even without a baseline.
+
+Run from anywhere; the baseline is kept in scaleBaseline.json next to this script:
+    ./scaleTests.py --update-baseline        record a baseline on this machine
+    ./scaleTests.py                          compare against it (exit status 1 on a regression)
+    ./scaleTests.py --entries 1000,20000 --commands list,rm --repeat 5
+"""
+import argparse
+import json
+import math
+import os
+import shutil
+import statistics
+import subprocess
+import sys
+import tempfile
+import time
+from pathlib import Path
+
+from generateNotes import generate
+
+TESTS = Path(__file__).resolve().parent
+REPO = TESTS.parent
+# size of the external files copied in
+COPY_IN_SIZE = 1024 * 1024
+# times below this (after removing the start up time) are too noisy to measure growth from
+MIN_GROWTH_SECONDS = 0.05
+
+# name: (setup arguments run untimed beforehand or None, arguments) - "{fs}", "{work}" and the
+# sample entries of the generated file system are filled in
+COMMANDS = {
+    'list': (None, ['list', '{fs}']),
+    'list-indexed': (['index', '{fs}'], ['list', '{fs}']),
+    'copyout-text': (None, ['copyout', '{fs}', '{text_file}', '{work}/out.txt']),
+    'copyout-binary': (None, ['copyout', '{fs}', '{binary_file}', '{work}/out.bin']),
+    'copyin-text': (None, ['copyin', '{fs}', '{work}/in.txt', 'scale/in.txt']),
+    'copyin-binary': (None, ['copyin', '{fs}', '{work}/in.bin', 'scale/in.bin']),
+    'mkdir': (None, ['mkdir', '{fs}', 'scale/new/dir/']),
+    'rm': (None, ['rm', '{fs}', '{text_file}']),
+    'rmdir': (None, ['rmdir', '{fs}', '{top_dir}']),
+    'defrag': (None, ['defrag', '{fs}']),
+    'index': (None, ['index', '{fs}']),
+}
+
+
+def find_vsfs():
+    """Find the command used to run VSFS: the launcher used by executeTests.py, or a built jar."""
+    if os.access(REPO / 'VSFS', os.X_OK):
+        return [str(REPO / 'VSFS')]
+    if (REPO / 'core' / 'target' / 'VSFS.jar').exists():
+        return ['java', '-jar', str(REPO / 'core' / 'target' / 'VSFS.jar')]
+    # the jar built by make has no manifest
+    if (REPO / 'VSFS.jar').exists():
+        return ['java', '-cp', str(REPO / 'VSFS.jar'), 'Driver']
+    sys.exit('VSFS has not been built - run "mvn package" or "make", or give the command with --vsfs.')
+
+
+def run(vsfs, args, expect_success=True):
+    """Run a VSFS command, returning its wall time in seconds and peak resident memory in kilobytes."""
+    start = time.perf_counter()
+    process = subprocess.Popen(vsfs + args, stdout=subprocess.DEVNULL, stderr=subprocess.PIPE)
+    # wait4 reports the resources used by this process alone, rather than every child so far
+    _, status, usage = os.wait4(process.pid, 0)
+    elapsed = time.perf_counter() - start
+    error = process.stderr.read().decode(errors='replace')
+    process.stderr.close()
+    code = os.waitstatus_to_exitcode(status)
+    if expect_success and code != 0:
+        raise RuntimeError(f'"{" ".join(args)}" failed ({code}): {error.strip()}')
+    return elapsed, usage.ru_maxrss
+
+
+def fill(args, values):
+    """Fill in the placeholders of command arguments."""
+    return [arg.format(**values) for arg in args]
+
+
+def measure(vsfs, work, entries, options, commands, repeat):
+    """Generate a file system with the given number of entries and measure every command on it."""
+    master = work / f'scale{entries}.notes'
+    summary = generate(master, entries, options.depth, options.fanout, options.sizes, options.binary_ratio,
+                       options.tombstone_ratio, options.seed)
+    print(f'{entries} entries: {master.stat().st_size / 1e6:.1f} MB, {summary["dirs"]} directories, '
+          f'{summary["binary"]} binary files, {summary["tombstones"]} removed entries and comments')
+
+    copy = work / 'run.notes'
+    values = dict(summary, fs=copy, work=work)
+    results = {}
+    for name in commands:
+        setup, args = COMMANDS[name]
+        # a small file system may have no binary file or directory to run the command on
+        if any(value is None and '{' + key + '}' in arg for key, value in values.items() for arg in args):
+            print(f'  {name:16} skipped (no sample entry)')
+            continue
+        times, peaks = [], []
+        for _ in range(repeat):
+            # every run starts from the same file system, without an index or lock left by the last
+            for leftover in work.glob('run.notes*'):
+                leftover.unlink()
+            shutil.copyfile(master, copy)
+            if setup:
+                run(vsfs, fill(setup, values))
+            elapsed, peak = run(vsfs, fill(args, values))
+            times.append(elapsed)
+            peaks.append(peak)
+        results[name] = {'seconds': round(statistics.median(times), 4), 'rss_kb': int(statistics.median(peaks))}
+        print(f'  {name:16} {results[name]["seconds"]:8.3f} s {results[name]["rss_kb"] / 1024:8.1f} MB')
+    master.unlink()
+    return results
+
+
+def compare(results, baseline, options):
+    """Compare results with the baseline, returning the regressions found."""
+    failures = []
+    for key, result in sorted(results.items()):
+        if key not in baseline:
+            continue
+        base = baseline[key]
+        slower = result['seconds'] - base['seconds']
+        if slower > options.min_seconds and result['seconds'] > base['seconds'] * (1 + options.time_threshold):
+            failures.append(f'{key}: {result["seconds"]:.3f} s against a baseline of {base["seconds"]:.3f} s')
+        grown = result['rss_kb'] - base['rss_kb']
+        if grown > options.min_rss_mb * 1024 and result['rss_kb'] > base['rss_kb'] * (1 + options.rss_threshold):
+            failures.append(f'{key}: {result["rss_kb"] / 1024:.1f} MB against a baseline of '
+                            f'{base["rss_kb"] / 1024:.1f} MB')
+    return failures
+
+
+def check_growth(by_size, startup, options):
+    """Check that the time of each command grows no faster than the allowed power of the entry count."""
+    failures = []
+    sizes = sorted(by_size)
+    for small, large in zip(sizes, sizes[1:]):
+        for name, result in by_size[large].items():
+            if name not in by_size[small]:
+                continue
+            before = by_size[small][name]['seconds'] - startup
+            after = result['seconds'] - startup
+            if before < MIN_GROWTH_SECONDS or after <= before:
+                continue
+            exponent = math.log(after / before) / math.log(large / small)
+            if exponent > options.max_exponent:
+                failures.append(f'{name}: time grows as entries^{exponent:.2f} from {small} to {large} entries')
+    return failures
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Scale and regression tests for VSFS commands.')
+    parser.add_argument('--vsfs', help='command used to run VSFS (default: the launcher or a built jar)')
+    parser.add_argument('--entries', default='1000,10000,100000', help='comma separated file counts to test')
+    parser.add_argument('--commands', default=','.join(COMMANDS), help='comma separated commands to run')
+    parser.add_argument('--repeat', type=int, default=3, help='runs of each command, the median is kept (default 3)')
+    parser.add_argument('--depth', type=int, default=2, help='depth of the generated directory tree')
+    parser.add_argument('--fanout', type=int, default=10, help='fan-out of the generated directory tree')
+    parser.add_argument('--sizes', default='exp:1000', help='file size distribution (see generateNotes.py)')
+    parser.add_argument('--binary-ratio', type=float, default=0.1, help='fraction of binary files')
+    parser.add_argument('--tombstone-ratio', type=float, default=0.05, help='fraction of removed entries')
+    parser.add_argument('--seed', type=int, default=0, help='random seed of the generated file systems')
+    parser.add_argument('--baseline', type=Path, default=TESTS / 'scaleBaseline.json', help='baseline file')
+    parser.add_argument('--update-baseline', action='store_true', help='record the results as the baseline')
+    parser.add_argument('--time-threshold', type=float, default=0.25,
+                        help='allowed fraction a command may be slower than its baseline (default 0.25)')
+    parser.add_argument('--min-seconds', type=float, default=0.2,
+                        help='differences in time below this are ignored as noise (default 0.2)')
+    parser.add_argument('--rss-threshold', type=float, default=0.25,
+                        help='allowed fraction of extra peak memory over the baseline (default 0.25)')
+    parser.add_argument('--min-rss-mb', type=float, default=16,
+                        help='differences in peak memory below this are ignored as noise (default 16)')
+    parser.add_argument('--max-exponent', type=float, default=1.5,
+                        help='fastest allowed growth of time with the entry count, as a power (default 1.5)')
+    parser.add_argument('--keep', action='store_true', help='keep the working directory')
+    options = parser.parse_args()
+
+    vsfs = options.vsfs.split() if options.vsfs else find_vsfs()
+    commands = options.commands.split(',')
+    unknown = [name for name in commands if name not in COMMANDS]
+    if unknown:
+        parser.error(f'unknown commands: {", ".join(unknown)}')
+    sizes = sorted(int(n) for n in options.entries.split(','))
+
+    work = Path(tempfile.mkdtemp(prefix='vsfsScale'))
+    try:
+        with open(work / 'in.txt', 'w') as text:
+            text.write(('scale test line of text\n' * (COPY_IN_SIZE // 24 + 1))[:COPY_IN_SIZE])
+        (work / 'in.bin').write_bytes(os.urandom(COPY_IN_SIZE))
+
+        # the start up time of the JVM is removed before checking how commands grow
+        startup = statistics.median(run(vsfs, [], expect_success=False)[0] for _ in range(options.repeat))
+        print(f'start up: {startup:.3f} s')
+        by_size = {n: measure(vsfs, work, n, options, commands, options.repeat) for n in sizes}
+    except RuntimeError as e:
+        sys.exit(f'🔴 {e}')
+    finally:
+        if options.keep:
+            print(f'working directory kept at {work}')
+        else:
+            shutil.rmtree(work)
+
+    results = {f'{name}@{n}': result for n, commands_run in by_size.items() for name, result in commands_run.items()}
+    baseline = json.loads(options.baseline.read_text()) if options.baseline.exists() else {}
+    if options.update_baseline:
+        baseline.update(results)
+        options.baseline.write_text(json.dumps(baseline, indent=2, sort_keys=True) + '\n')
+        print(f'🟢 baseline written to {options.baseline}')
+        return
+
+    failures = compare(results, baseline, options) + check_growth(by_size, startup, options)
+    if not baseline:
+        print(f'🟠 {options.baseline} does not exist - run with --update-baseline to record one.')
+    for failure in failures:
+        print(f'🔴 {failure}')
+    if failures:
+        sys.exit(1)
+    print('🟢 no regressions found')
+
+
+if __name__ == '__main__':
+    main()